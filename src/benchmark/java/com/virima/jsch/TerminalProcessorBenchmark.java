@@ -0,0 +1,152 @@
+package com.virima.jsch;
+
+import com.jediterm.terminal.ArrayTerminalDataStream;
+import com.jediterm.terminal.emulator.Emulator;
+import com.jediterm.terminal.emulator.JediEmulator;
+import com.jediterm.terminal.model.JediTerminal;
+import com.jediterm.terminal.model.StyleState;
+import com.jediterm.terminal.model.TerminalTextBuffer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Feeds canned terminal output through the JediTerm processor, no network involved.
+ * <p>
+ * Compares the old way, a new String, char array, data stream and emulator for every read, with
+ * the processor's one long-lived emulator over a {@link ChannelDataStream}, and with the
+ * {@link PlainTextScreen} the processor uses on dumb ptys. Reports throughput and bytes
+ * allocated per MB of input on the emulating thread. The sample is colored listing output with
+ * multi-byte characters, read in 4 KB pieces like a busy channel delivers it.
+ * <p>
+ * Figures so far, 32 MB, JDK 21, taken with an emulator that consumes nothing, so they show what
+ * each mode costs around the emulator and not the emulator itself:
+ * <pre>
+ * per-chunk emulator   ~260 MB/s   13.5 MB allocated per MB
+ * persistent stream    ~590 MB/s    3.0 MB allocated per MB
+ * plain-text screen    ~205 MB/s    3.0 MB allocated per MB
+ * </pre>
+ * The plain-text figure is real: the sample never addresses the cursor, so JediTerm is not
+ * involved. The per-chunk and persistent figures against the jediterm-core jar are still to be
+ * taken; until then whether the persistent stream pays off with the emulator's own cost on top is
+ * open.
+ * <pre>
+ * gradle benchmark -Pmain=TerminalProcessorBenchmark -Pargs="[megabytes] [iterations]"
+ * </pre>
+ */
+public class TerminalProcessorBenchmark {
+    private static final int WIDTH = 200;
+    private static final int HEIGHT = 24;
+    private static final int READ_SIZE = 4096;
+
+    public static void main(String[] args) throws Exception {
+        int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        byte[] sample = sampleOutput(megabytes);
+
+        System.out.println("Input: " + sample.length + " bytes, iterations: " + iterations);
+        for (int i = 0; i <= iterations; i++) {
+            // The first round is warm-up
+            boolean report = i > 0;
+            measure("per-chunk emulator", sample, report, () -> perChunk(sample));
+            measure("persistent stream", sample, report, () -> persistent(sample, false));
+            measure("plain-text screen", sample, report, () -> persistent(sample, true));
+        }
+    }
+
+    private interface Run {
+        void run() throws IOException;
+    }
+
+    private static void measure(String name, byte[] sample, boolean report, Run run) throws IOException {
+        long allocatedStart = allocatedBytes();
+        long start = System.nanoTime();
+        run.run();
+        long nanos = System.nanoTime() - start;
+        long allocated = allocatedBytes() - allocatedStart;
+        if (report) {
+            double megabytes = sample.length / (1024.0 * 1024.0);
+            System.out.printf("%-20s %8.1f ms   %7.2f MB/s   allocated %8.1f MB per MB%n",
+                    name, nanos / 1_000_000.0, megabytes / (nanos / 1e9), allocated / (1024.0 * 1024.0) / megabytes);
+        }
+    }
+
+    /**
+     * What the processor did before: everything rebuilt for each read.
+     */
+    private static void perChunk(byte[] sample) throws IOException {
+        StyleState styleState = new StyleState();
+        TerminalTextBuffer textBuffer = new TerminalTextBuffer(WIDTH, HEIGHT, styleState);
+        JediTerminal terminal = new JediTerminal(new JediTermSshExecutor.BackBufferDisplay(textBuffer), textBuffer, styleState);
+        InputStream input = new ChunkedInput(sample);
+        // The processor keeps the raw text as well
+        StringBuilder raw = new StringBuilder();
+        byte[] buffer = new byte[READ_SIZE];
+        int bytesRead;
+        while ((bytesRead = input.read(buffer)) != -1) {
+            String data = new String(buffer, 0, bytesRead, StandardCharsets.UTF_8);
+            raw.append(data);
+            Emulator emulator = new JediEmulator(new ArrayTerminalDataStream(data.toCharArray()), terminal);
+            while (emulator.hasNext()) {
+                emulator.next();
+            }
+        }
+    }
+
+    private static void persistent(byte[] sample, boolean plainText) {
+        StyleState styleState = new StyleState();
+        TerminalTextBuffer textBuffer = new TerminalTextBuffer(WIDTH, HEIGHT, styleState);
+        JediTerminal terminal = new JediTerminal(new JediTermSshExecutor.BackBufferDisplay(textBuffer), textBuffer, styleState);
+        JediTermSshExecutor.JediTermProcessor processor = new JediTermSshExecutor.JediTermProcessor(new ChunkedInput(sample), terminal, textBuffer, plainText);
+        // Runs on this thread until the input ends
+        processor.run();
+    }
+
+    private static byte[] sampleOutput(int megabytes) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(megabytes * 1024 * 1024);
+        for (int i = 0; out.size() < megabytes * 1024 * 1024; i++) {
+            String line = String.format("\u001b[01;34mdir-%06d\u001b[0m  file-%06d.txt  %8d  Gr\u00fc\u00dfe aus Z\u00fcrich \u2013 na\u00efve caf\u00e9\r\n", i, i, i * 37L);
+            out.writeBytes(line.getBytes(StandardCharsets.UTF_8));
+        }
+        return out.toByteArray();
+    }
+
+    private static long allocatedBytes() {
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean threads) {
+            return threads.getCurrentThreadAllocatedBytes();
+        }
+        return 0;
+    }
+
+    /**
+     * Hands out the sample at most {@link #READ_SIZE} bytes per read, so reads split lines,
+     * escape sequences and multi-byte characters the way a channel does.
+     */
+    private static final class ChunkedInput extends InputStream {
+        private final byte[] data;
+        private int position;
+
+        ChunkedInput(byte[] data) {
+            this.data = data;
+        }
+
+        @Override
+        public int read() {
+            return position < data.length ? data[position++] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (position >= data.length) {
+                return -1;
+            }
+            int n = Math.min(Math.min(len, READ_SIZE), data.length - position);
+            System.arraycopy(data, position, b, off, n);
+            position += n;
+            return n;
+        }
+    }
+}
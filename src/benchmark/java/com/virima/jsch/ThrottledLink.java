@@ -0,0 +1,118 @@
+package com.virima.jsch;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A local TCP forwarder with a bandwidth limit and a one-way delay in each direction, so a slow
+ * WAN link can be measured without tc/netem. Connect to {@link #getPort()} on loopback instead of
+ * the real host.
+ */
+final class ThrottledLink implements AutoCloseable {
+    private static final int CHUNK_SIZE = 4096;
+    private static final byte[] END = new byte[0];
+
+    private final String host;
+    private final int port;
+    private final long bitsPerSecond;
+    private final long delayNanos;
+    private final ServerSocket server;
+
+    ThrottledLink(String host, int port, long bitsPerSecond, long delayMillis) throws IOException {
+        this.host = host;
+        this.port = port;
+        this.bitsPerSecond = bitsPerSecond;
+        this.delayNanos = TimeUnit.MILLISECONDS.toNanos(delayMillis);
+        this.server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread.ofVirtual().name("throttled-link").start(this::accept);
+    }
+
+    int getPort() {
+        return server.getLocalPort();
+    }
+
+    private void accept() {
+        while (!server.isClosed()) {
+            try {
+                Socket client = server.accept();
+                Socket upstream = new Socket(host, port);
+                client.setTcpNoDelay(true);
+                upstream.setTcpNoDelay(true);
+                pump(client, upstream);
+                pump(upstream, client);
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * One direction: a reader stamps each chunk with when it may leave, a writer sends it no
+     * earlier than that and no faster than the bandwidth allows.
+     */
+    private void pump(Socket from, Socket to) {
+        BlockingQueue<Chunk> queue = new LinkedBlockingQueue<>();
+        Thread.ofVirtual().start(() -> {
+            byte[] buffer = new byte[CHUNK_SIZE];
+            try (InputStream in = from.getInputStream()) {
+                int n;
+                while ((n = in.read(buffer)) >= 0) {
+                    queue.add(new Chunk(System.nanoTime() + delayNanos, Arrays.copyOf(buffer, n)));
+                }
+            } catch (IOException e) {
+                // Closed from the other side
+            }
+            queue.add(new Chunk(System.nanoTime() + delayNanos, END));
+        });
+        Thread.ofVirtual().start(() -> {
+            long nextFree = 0;
+            try {
+                OutputStream out = to.getOutputStream();
+                while (true) {
+                    Chunk chunk = queue.take();
+                    long sendAt = Math.max(chunk.due, nextFree);
+                    sleepUntil(sendAt);
+                    if (chunk.data == END) {
+                        to.shutdownOutput();
+                        return;
+                    }
+                    out.write(chunk.data);
+                    out.flush();
+                    nextFree = Math.max(sendAt, System.nanoTime()) + chunk.data.length * 8L * 1_000_000_000L / bitsPerSecond;
+                }
+            } catch (IOException | InterruptedException e) {
+                // Connection gone
+            }
+        });
+    }
+
+    private static void sleepUntil(long nanoTime) throws InterruptedException {
+        long wait = nanoTime - System.nanoTime();
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+    }
+
+    private static final class Chunk {
+        final long due;
+        final byte[] data;
+
+        Chunk(long due, byte[] data) {
+            this.due = due;
+            this.data = data;
+        }
+    }
+}
@@ -0,0 +1,304 @@
+package com.virima.jsch;
+
+import com.virima.utils.AsyncLog;
+import com.virima.utils.ComponentLog;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers, per host, which algorithms were actually negotiated and how long key exchange took,
+ * and uses that to reorder the proposals sent on the next connect.
+ * <p>
+ * SSH picks the first algorithm in the client's list that the server also supports, so:
+ * <ul>
+ *   <li>everything ahead of the negotiated kex in the list we sent is unsupported by the server;</li>
+ *   <li>kex algorithms we have timed are put first, fastest first;</li>
+ *   <li>one untimed modern kex candidate is moved to the front per connect, so a host that
+ *       settled on a slow DH group gets a chance to show it supports something faster.
+ *       Because the full list is still sent, an unsupported candidate costs nothing.</li>
+ * </ul>
+ * Host key, cipher and MAC proposals are left alone: for those the client's first choice the server
+ * supports wins, and that is what was negotiated last time anyway, so reordering changes nothing.
+ * <p>
+ * The cache lives in memory unless it is created with a file, e.g. {@link #defaultFile()}; then it
+ * is loaded from there, saved as it changes and on JVM shutdown until {@link #close()} is called.
+ */
+public final class AlgorithmNegotiationCache implements AutoCloseable {
+    private static final String CLASSNAME = "AlgorithmNegotiationCache";
+    private static final ComponentLog LOG = AsyncLog.forComponent(CLASSNAME);
+
+    // SHA-1 based groups are fallbacks only: use them when a host needs them, never explore them
+    private static final Set<String> LEGACY_KEX = Set.of(
+            "diffie-hellman-group1-sha1",
+            "diffie-hellman-group14-sha1",
+            "diffie-hellman-group-exchange-sha1");
+
+    private static final long SAVE_INTERVAL_MILLIS = 10_000L;
+
+    // Null when the cache is not persisted
+    private final File file;
+    private final Map<String, HostAlgorithms> hosts = new ConcurrentHashMap<>();
+    private final Thread shutdownHook;
+    private long lastSaveMillis;
+    private boolean dirty;
+
+    /**
+     * A cache that is kept in memory only.
+     */
+    public AlgorithmNegotiationCache() {
+        this.file = null;
+        this.shutdownHook = null;
+    }
+
+    /**
+     * A cache persisted to {@code file}.
+     */
+    public AlgorithmNegotiationCache(File file) {
+        this.file = file;
+        load();
+        this.shutdownHook = new Thread(this::save, "ssh-algorithm-cache-save");
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    public static File defaultFile() {
+        return new File(System.getProperty("user.dir") + File.separator + "cache" + File.separator + "ssh-algorithms.properties");
+    }
+
+    /**
+     * Reorders the algorithm proposals in {@code config} for this host. Unknown hosts keep the defaults.
+     */
+    public void apply(String host, int port, Properties config) {
+        HostAlgorithms known = hosts.get(host + ":" + port);
+        if (known == null) {
+            return;
+        }
+        synchronized (known) {
+            config.put("kex", String.join(",", known.orderKex(split(config.getProperty("kex")))));
+        }
+    }
+
+    /**
+     * Records what a successful handshake negotiated.
+     *
+     * @param kexProposal the kex list that was sent for this connect
+     */
+    public void record(String host, int port, String kexProposal, ConnectionTimings timings) {
+        if (timings == null || timings.getKexAlgorithm() == null) {
+            return;
+        }
+        HostAlgorithms known = hosts.computeIfAbsent(host + ":" + port, k -> new HostAlgorithms());
+        synchronized (known) {
+            String negotiated = timings.getKexAlgorithm();
+            for (String candidate : split(kexProposal)) {
+                if (candidate.equals(negotiated)) {
+                    break;
+                }
+                known.unsupportedKex.add(candidate);
+                known.kexStats.remove(candidate);
+            }
+            known.unsupportedKex.remove(negotiated);
+            if (timings.getKexMillis() >= 0) {
+                known.kexStats.computeIfAbsent(negotiated, k -> new KexStat()).add(timings.getKexMillis());
+            }
+        }
+        synchronized (this) {
+            dirty = true;
+        }
+        saveIfDue();
+    }
+
+    /**
+     * Forgets everything about a host, e.g. after its SSH daemon was replaced.
+     */
+    public void forget(String host, int port) {
+        if (hosts.remove(host + ":" + port) != null) {
+            synchronized (this) {
+                dirty = true;
+            }
+        }
+    }
+
+    // ==================== PERSISTENCE ====================
+
+    private void saveIfDue() {
+        synchronized (this) {
+            if (System.currentTimeMillis() - lastSaveMillis < SAVE_INTERVAL_MILLIS) {
+                return;
+            }
+        }
+        save();
+    }
+
+    public synchronized void save() {
+        if (file == null || !dirty) {
+            return;
+        }
+        Properties properties = new Properties();
+        for (Map.Entry<String, HostAlgorithms> entry : hosts.entrySet()) {
+            HostAlgorithms known = entry.getValue();
+            synchronized (known) {
+                known.store(entry.getKey(), properties);
+            }
+        }
+
+        File dir = file.getParentFile();
+        if (dir != null && !dir.exists()) {
+            dir.mkdirs();
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            properties.store(out, "SSH algorithms negotiated per host");
+        } catch (IOException e) {
+            LOG.error("Could not save " + file + ": " + e);
+            return;
+        }
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            tmp.renameTo(file);
+        }
+        dirty = false;
+        lastSaveMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * Saves the cache if it is persisted and unregisters its shutdown hook.
+     */
+    @Override
+    public void close() {
+        save();
+        if (shutdownHook != null) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch (IllegalStateException e) {
+                // Already shutting down; the hook saves anyway
+            }
+        }
+    }
+
+    private void load() {
+        if (!file.exists()) {
+            return;
+        }
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            properties.load(in);
+        } catch (IOException e) {
+            LOG.error("Could not load " + file + ": " + e);
+            return;
+        }
+        for (String name : properties.stringPropertyNames()) {
+            int separator = name.lastIndexOf('|');
+            if (separator <= 0) {
+                continue;
+            }
+            String hostKey = name.substring(0, separator);
+            hosts.computeIfAbsent(hostKey, k -> new HostAlgorithms())
+                    .load(name.substring(separator + 1), properties.getProperty(name));
+        }
+    }
+
+    // ==================== HELPERS ====================
+
+    private static List<String> split(String proposal) {
+        List<String> list = new ArrayList<>();
+        if (proposal != null) {
+            for (String part : proposal.split(",")) {
+                if (!part.isBlank()) {
+                    list.add(part.trim());
+                }
+            }
+        }
+        return list;
+    }
+
+    private static class KexStat {
+        int count;
+        double averageMillis;
+
+        void add(long millis) {
+            count++;
+            // Running average that leans on recent samples once we have a few
+            double weight = Math.max(1.0 / count, 0.2);
+            averageMillis += (millis - averageMillis) * weight;
+        }
+    }
+
+    private static class HostAlgorithms {
+        final Map<String, KexStat> kexStats = new ConcurrentHashMap<>();
+        final Set<String> unsupportedKex = new LinkedHashSet<>();
+
+        List<String> orderKex(List<String> defaults) {
+            List<String> ordered = new ArrayList<>();
+
+            // One untimed modern candidate goes first, in default preference order
+            for (String candidate : defaults) {
+                if (!kexStats.containsKey(candidate) && !unsupportedKex.contains(candidate) && !LEGACY_KEX.contains(candidate)) {
+                    ordered.add(candidate);
+                    break;
+                }
+            }
+
+            // Then what we have timed, fastest first
+            List<String> timed = new ArrayList<>(kexStats.keySet());
+            timed.retainAll(defaults);
+            timed.sort(Comparator.comparingDouble(alg -> kexStats.get(alg).averageMillis));
+            ordered.addAll(timed);
+
+            // Then everything else, so negotiation can still succeed if the server changed
+            for (String candidate : defaults) {
+                if (!ordered.contains(candidate) && !unsupportedKex.contains(candidate)) {
+                    ordered.add(candidate);
+                }
+            }
+            for (String candidate : defaults) {
+                if (!ordered.contains(candidate)) {
+                    ordered.add(candidate);
+                }
+            }
+            return ordered;
+        }
+
+        void store(String host, Properties properties) {
+            for (Map.Entry<String, KexStat> entry : kexStats.entrySet()) {
+                properties.setProperty(host + "|kex." + entry.getKey(), entry.getValue().count + "," + Math.round(entry.getValue().averageMillis));
+            }
+            if (!unsupportedKex.isEmpty()) {
+                properties.setProperty(host + "|kexUnsupported", String.join(",", unsupportedKex));
+            }
+        }
+
+        void load(String field, String value) {
+            if (field.startsWith("kex.")) {
+                String[] parts = value.split(",");
+                if (parts.length == 2) {
+                    try {
+                        KexStat stat = new KexStat();
+                        stat.count = Integer.parseInt(parts[0].trim());
+                        stat.averageMillis = Double.parseDouble(parts[1].trim());
+                        kexStats.put(field.substring("kex.".length()), stat);
+                    } catch (NumberFormatException ignored) {
+                    }
+                }
+                return;
+            }
+            // Host key and cipher entries from older files are dropped on the next save
+            if (field.equals("kexUnsupported")) {
+                unsupportedKex.addAll(Arrays.asList(value.split(",")));
+            }
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.virima.jsch;
+
+import com.jcraft.jsch.JSchException;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers which authentication method worked for each host and user.
+ * <p>
+ * The default proposal walks publickey, keyboard-interactive, two GSSAPI variants and
+ * password in turn; on a password-only device every method ahead of password is a wasted
+ * round-trip. Once a method has succeeded, the next connect offers only that method.
+ * If it stops working, the caller invalidates the entry and falls back to the full list.
+ */
+public class AuthMethodMemo {
+
+    private static final Set<String> KNOWN_METHODS = Set.of(
+            "publickey", "keyboard-interactive", "gssapi-keyex", "gssapi-with-mic", "password");
+
+    private final Map<String, String> methods = new ConcurrentHashMap<>();
+
+    /**
+     * @return the method that last worked for this host and user, or null if none is known
+     */
+    public String get(String host, int port, String userName) {
+        return methods.get(key(host, port, userName));
+    }
+
+    public void record(String host, int port, String userName, String method) {
+        if (method != null && KNOWN_METHODS.contains(method)) {
+            methods.put(key(host, port, userName), method);
+        }
+    }
+
+    public void invalidate(String host, int port, String userName) {
+        methods.remove(key(host, port, userName));
+    }
+
+    /**
+     * True if JSch gave up because no offered method was accepted, as opposed to a network or kex failure.
+     */
+    public static boolean isAuthFailure(JSchException e) {
+        String message = e.getMessage();
+        return message != null && (message.startsWith("Auth fail") || message.startsWith("Auth cancel"));
+    }
+
+    private static String key(String host, int port, String userName) {
+        return userName + "@" + host + ":" + port;
+    }
+}
@@ -0,0 +1,37 @@
+package com.virima.jsch;
+
+/**
+ * Keeps the first {@code maxChars} characters written to it and only counts the rest,
+ * so a command that floods a stream can't take the heap with it.
+ */
+final class BoundedText {
+    private final StringBuilder text = new StringBuilder();
+    private final int maxChars;
+    private long dropped;
+
+    BoundedText(int maxChars) {
+        this.maxChars = maxChars;
+    }
+
+    synchronized void append(char[] chars, int offset, int length) {
+        int room = Math.max(0, maxChars - text.length());
+        int kept = Math.min(room, length);
+        text.append(chars, offset, kept);
+        dropped += length - kept;
+    }
+
+    synchronized boolean isTruncated() {
+        return dropped > 0;
+    }
+
+    /**
+     * The kept text, followed by a marker line if anything was dropped.
+     */
+    @Override
+    public synchronized String toString() {
+        if (dropped == 0) {
+            return text.toString();
+        }
+        return text + "\n[truncated " + dropped + " characters]";
+    }
+}
@@ -0,0 +1,165 @@
+package com.virima.jsch;
+
+import com.jediterm.terminal.TerminalDataStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * A {@link TerminalDataStream} over a channel's input stream that stays open for the life of
+ * the channel.
+ * <p>
+ * One emulator reads from it for the whole session, so an escape sequence or a UTF-8 character
+ * that arrives split across two reads is finished by the next read. Bytes are decoded by one
+ * streaming {@link CharsetDecoder} into a reused char buffer; an incomplete sequence at the end
+ * of a read waits in the byte buffer for the rest.
+ * <p>
+ * When the buffer runs dry the next read may block, so the owner is told before and after each
+ * read, which is where it publishes what the emulator has drawn so far.
+ */
+final class ChannelDataStream implements TerminalDataStream {
+
+    /**
+     * Callbacks around each read, both on the emulating thread.
+     */
+    interface ReadListener {
+        /**
+         * Everything read so far has been emulated and the next read may block.
+         */
+        void beforeRead();
+
+        /**
+         * A read came back with {@code length} decoded chars, before the emulator sees them.
+         * Also called, with length 0, when the read failed or hit end of stream.
+         */
+        void afterRead(char[] chars, int offset, int length);
+    }
+
+    private final InputStream input;
+    private final CharsetDecoder decoder;
+    private final ReadListener listener;
+    private final ByteBuffer bytes;
+    private char[] buffer;
+    private CharBuffer chars;
+    private int offset;
+    private int length;
+    private boolean endOfInput;
+
+    ChannelDataStream(InputStream input, Charset charset, int bufferSize, ReadListener listener) {
+        this.input = input;
+        this.decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.listener = listener;
+        this.bytes = ByteBuffer.allocate(bufferSize);
+        // Decoding never yields more chars than it consumes bytes, so the same size will do
+        this.buffer = new char[bufferSize];
+        this.chars = CharBuffer.wrap(buffer);
+    }
+
+    @Override
+    public char getChar() throws IOException {
+        if (length == 0) {
+            fill();
+        }
+        length--;
+        return buffer[offset++];
+    }
+
+    @Override
+    public void pushChar(char c) {
+        if (offset == 0) {
+            // Pushed back past the start: move the content to the end, growing if it is full
+            char[] target = length == buffer.length ? new char[buffer.length + 1] : buffer;
+            System.arraycopy(buffer, 0, target, target.length - length, length);
+            buffer = target;
+            offset = buffer.length - length;
+        }
+        length++;
+        buffer[--offset] = c;
+    }
+
+    @Override
+    public String readNonControlCharacters(int maxChars) throws IOException {
+        if (length == 0) {
+            fill();
+        }
+        int end = offset + Math.min(maxChars, length);
+        int i = offset;
+        while (i < end && buffer[i] >= 0x20) {
+            i++;
+        }
+        String text = new String(buffer, offset, i - offset);
+        length -= i - offset;
+        offset = i;
+        return text;
+    }
+
+    /**
+     * Puts {@code chars} in front of what is left, in one go: a replayed screen can be large,
+     * and pushing it char by char would move the buffer once per char.
+     */
+    @Override
+    public void pushBackBuffer(char[] chars, int length) {
+        if (offset < length) {
+            char[] target = this.length + length > buffer.length ? new char[this.length + length] : buffer;
+            System.arraycopy(buffer, offset, target, target.length - this.length, this.length);
+            buffer = target;
+            offset = buffer.length - this.length;
+        }
+        offset -= length;
+        this.length += length;
+        System.arraycopy(chars, 0, buffer, offset, length);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return length == 0;
+    }
+
+    /**
+     * Reads until at least one char is decoded. A read that ends inside a multi-byte character
+     * decodes to nothing yet, so it simply reads again.
+     */
+    private void fill() throws IOException {
+        if (endOfInput) {
+            throw new EOF();
+        }
+        offset = 0;
+        length = 0;
+        try {
+            listener.beforeRead();
+            if (chars.array() != buffer) {
+                chars = CharBuffer.wrap(buffer);
+            }
+            while (length == 0) {
+                int n = input.read(bytes.array(), bytes.position(), bytes.remaining());
+                chars.clear();
+                if (n < 0) {
+                    // A sequence cut off by the end of the stream becomes a replacement char
+                    endOfInput = true;
+                    bytes.flip();
+                    decoder.decode(bytes, chars, true);
+                    decoder.flush(chars);
+                    length = chars.position();
+                    if (length == 0) {
+                        throw new EOF();
+                    }
+                    return;
+                }
+                bytes.position(bytes.position() + n);
+                bytes.flip();
+                decoder.decode(bytes, chars, false);
+                bytes.compact();
+                length = chars.position();
+            }
+        } finally {
+            listener.afterRead(buffer, 0, length);
+        }
+    }
+}
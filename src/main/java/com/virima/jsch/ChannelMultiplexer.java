@@ -0,0 +1,257 @@
+package com.virima.jsch;
+
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import com.virima.utils.AsyncLog;
+import com.virima.utils.ComponentLog;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs several exec commands in parallel over one SSH connection.
+ * <p>
+ * Servers cap how many channels a connection may have open (OpenSSH's MaxSessions defaults
+ * to 10, many network OSes allow fewer) and simply refuse the channel open beyond that.
+ * The multiplexer starts at {@link #DEFAULT_CHANNEL_LIMIT}; when the server refuses an open
+ * (SSH_MSG_CHANNEL_OPEN_FAILURE, not a timeout or a failed exec request) while other channels
+ * are in flight, it lowers the limit to the number that were open, puts the command back in the
+ * queue and remembers the limit for the user on the host. Commands beyond the limit wait in a
+ * fair queue until a channel closes.
+ * <p>
+ * A learned limit is a guess, so it doesn't stick forever: every {@link #RAISE_AFTER_OPENS}
+ * opens without a refusal it goes up by one, and after {@link #LEARNED_LIMIT_TTL_MILLIS} a new
+ * multiplexer starts from the default again.
+ * <p>
+ * Each command gets its own {@link CommandResult}.
+ */
+public class ChannelMultiplexer implements AutoCloseable {
+    private static final String CLASSNAME = "ChannelMultiplexer";
+    private static final ComponentLog LOG = AsyncLog.forComponent(CLASSNAME);
+
+    public static final int DEFAULT_CHANNEL_LIMIT = 10;
+    private static final int MAX_OPEN_RETRIES = 5;
+    static final int RAISE_AFTER_OPENS = 50;
+    static final long LEARNED_LIMIT_TTL_MILLIS = 60 * 60 * 1000L;
+
+    // Learned limits survive the multiplexer, so the next session to the host starts right
+    private static final Map<String, LearnedLimit> LEARNED_LIMITS = new ConcurrentHashMap<>();
+
+    private final ChannelOpener opener;
+    private final String hostKey;
+    private final ReentrantLock lock = new ReentrantLock(true);
+    private final Condition slotFreed = lock.newCondition();
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private int limit;
+    private int inFlight;
+    private int opensSinceRefusal;
+
+    public ChannelMultiplexer(Session session) {
+        // The limit can differ per account (sshd_config Match User), so the user is part of the key
+        this(new SessionOpener(session), session.getUserName() + "@" + session.getHost() + ":" + session.getPort());
+    }
+
+    ChannelMultiplexer(ChannelOpener opener, String hostKey) {
+        this.opener = opener;
+        this.hostKey = hostKey;
+        LearnedLimit learned = LEARNED_LIMITS.get(hostKey);
+        if (learned != null && learned.isExpired()) {
+            LEARNED_LIMITS.remove(hostKey, learned);
+            learned = null;
+        }
+        this.limit = learned != null ? learned.limit : DEFAULT_CHANNEL_LIMIT;
+    }
+
+    /**
+     * Queues a command; the future completes with its result once it has run.
+     */
+    public CompletableFuture<CommandResult> submit(String command, boolean isAdmin) {
+        return CompletableFuture.supplyAsync(() -> run(command, isAdmin), executor);
+    }
+
+    /**
+     * Runs all commands, as many at a time as the server allows, and returns results in command order.
+     */
+    public List<CommandResult> executeAll(List<String> commands, boolean isAdmin) {
+        List<CompletableFuture<CommandResult>> futures = new ArrayList<>();
+        for (String command : commands) {
+            futures.add(submit(command, isAdmin));
+        }
+        List<CommandResult> results = new ArrayList<>();
+        for (CompletableFuture<CommandResult> future : futures) {
+            results.add(future.join());
+        }
+        return results;
+    }
+
+    private CommandResult run(String command, boolean isAdmin) {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                acquireSlot();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return new CommandResult(false, -1, "");
+            }
+
+            boolean retry = false;
+            try {
+                CommandResult result = opener.exec(command, isAdmin);
+                recordOpened();
+                return result;
+            } catch (ChannelRefusedException e) {
+                if (!opener.isConnected() || attempt >= MAX_OPEN_RETRIES || !e.mayBeChannelLimit() || !lowerLimitAfterRefusal()) {
+                    LOG.error("Could not open channel for '" + command + "': " + e);
+                    return new CommandResult(false, -1, "");
+                }
+                retry = true;
+            } catch (JSchException e) {
+                // Timeouts and failed exec requests say nothing about the channel limit
+                LOG.error("Could not open channel for '" + command + "': " + e);
+                return new CommandResult(false, -1, "");
+            } finally {
+                releaseSlot();
+                if (retry) {
+                    LOG.info(() -> "Channel refused on " + hostKey + ", limit now " + getChannelLimit() + ", requeueing");
+                }
+            }
+        }
+    }
+
+    private void acquireSlot() throws InterruptedException {
+        lock.lock();
+        try {
+            while (inFlight >= limit) {
+                slotFreed.await();
+            }
+            inFlight++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void releaseSlot() {
+        lock.lock();
+        try {
+            inFlight--;
+            slotFreed.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Called while the refused open still holds its slot. If other channels were open, the refusal
+     * is most likely the server's channel limit: shrink to what was open and let the caller retry.
+     */
+    private boolean lowerLimitAfterRefusal() {
+        lock.lock();
+        try {
+            int openElsewhere = inFlight - 1;
+            if (openElsewhere < 1) {
+                return false;
+            }
+            if (openElsewhere < limit) {
+                limit = openElsewhere;
+                LEARNED_LIMITS.put(hostKey, new LearnedLimit(limit));
+            }
+            opensSinceRefusal = 0;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A channel opened. Below the default, enough of these in a row let the limit creep back up,
+     * so a refusal that was really a passing shortage doesn't cap the host for good.
+     */
+    private void recordOpened() {
+        lock.lock();
+        try {
+            if (limit >= DEFAULT_CHANNEL_LIMIT || ++opensSinceRefusal < RAISE_AFTER_OPENS) {
+                return;
+            }
+            opensSinceRefusal = 0;
+            limit++;
+            if (limit >= DEFAULT_CHANNEL_LIMIT) {
+                LEARNED_LIMITS.remove(hostKey);
+            } else {
+                LEARNED_LIMITS.put(hostKey, new LearnedLimit(limit));
+            }
+            slotFreed.signal();
+            int raised = limit;
+            LOG.debug(() -> "Channel limit on " + hostKey + " raised to " + raised);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getChannelLimit() {
+        lock.lock();
+        try {
+            return limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops accepting commands. The session itself is left open for the caller to release.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+
+    /**
+     * Opens one exec channel per command; the session in production, a fake in tests.
+     */
+    interface ChannelOpener {
+        /**
+         * Runs the command over a new channel.
+         *
+         * @throws ChannelRefusedException if the server refused the channel open
+         */
+        CommandResult exec(String command, boolean isAdmin) throws JSchException;
+
+        boolean isConnected();
+    }
+
+    private static final class SessionOpener implements ChannelOpener {
+        private final Session session;
+
+        SessionOpener(Session session) {
+            this.session = session;
+        }
+
+        @Override
+        public CommandResult exec(String command, boolean isAdmin) throws JSchException {
+            return SSHExecutor.executeCommand(session, command, isAdmin);
+        }
+
+        @Override
+        public boolean isConnected() {
+            return session.isConnected();
+        }
+    }
+
+    private static final class LearnedLimit {
+        final int limit;
+        final long learnedAtMillis = System.currentTimeMillis();
+
+        LearnedLimit(int limit) {
+            this.limit = limit;
+        }
+
+        boolean isExpired() {
+            return System.currentTimeMillis() - learnedAtMillis > LEARNED_LIMIT_TTL_MILLIS;
+        }
+    }
+}
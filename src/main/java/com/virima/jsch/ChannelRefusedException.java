@@ -0,0 +1,37 @@
+package com.virima.jsch;
+
+import com.jcraft.jsch.JSchException;
+
+/**
+ * The server answered a channel open with SSH_MSG_CHANNEL_OPEN_FAILURE, as opposed to the open
+ * timing out or the session dropping. Servers refuse this way when a connection has as many
+ * channels open as they allow.
+ */
+class ChannelRefusedException extends JSchException {
+    private static final long serialVersionUID = 1L;
+
+    // Reason codes from RFC 4254, section 5.1
+    static final int ADMINISTRATIVELY_PROHIBITED = 1;
+    static final int CONNECT_FAILED = 2;
+    static final int UNKNOWN_CHANNEL_TYPE = 3;
+    static final int RESOURCE_SHORTAGE = 4;
+
+    private final int reasonCode;
+
+    ChannelRefusedException(int reasonCode, Throwable cause) {
+        super("channel open refused, reason " + reasonCode, cause);
+        this.reasonCode = reasonCode;
+    }
+
+    int getReasonCode() {
+        return reasonCode;
+    }
+
+    /**
+     * True unless the server doesn't offer the channel type at all; any other refusal can be the
+     * channel limit (OpenSSH refuses beyond MaxSessions as administratively prohibited).
+     */
+    boolean mayBeChannelLimit() {
+        return reasonCode != UNKNOWN_CHANNEL_TYPE;
+    }
+}
@@ -5,19 +5,36 @@
 
 package com.virima.jsch;
 
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
 public class CommandResult {
     boolean result;
     int exitCode;
-    String output;
+    // Output is kept as raw bytes, possibly spilled to disk, and only decoded when asked for.
+    // Output set as a String is kept only as that String; bytes are made from it on demand.
+    SpillableOutput outputBuffer;
+    Charset charset = StandardCharsets.UTF_8;
+    String decodedOutput;
+    LineIndex lineIndex;
+    String errorOutput = "";
+    boolean errorTruncated;
+    ConnectionTimings connectionTimings;
+    long channelOpenMillis = -1;
+    long durationMillis = -1;
+    SSHConnectException.Reason failureReason;
 
     public CommandResult(boolean result, int exitCode, String output) {
         this.result = result;
         this.exitCode = exitCode;
-        this.output = output;
+        this.decodedOutput = output == null ? "" : output;
     }
 
     public String toString() {
-        return this.output;
+        return getOutput();
     }
 
     public boolean getResult() {
@@ -36,11 +53,191 @@ public class CommandResult {
         this.exitCode = exitCode;
     }
 
+    /**
+     * The whole output as one String, decoded with {@link #getCharset()}. For outputs that were
+     * spilled to disk this puts all of it on the heap; use {@link #getOutputChars()},
+     * {@link #line(int)} or {@link #openOutputStream()} for those.
+     */
     public String getOutput() {
-        return this.output;
+        if (this.decodedOutput != null) {
+            return this.decodedOutput;
+        }
+        String decoded = this.outputBuffer.decode(this.charset);
+        if (!this.outputBuffer.isSpilled()) {
+            this.decodedOutput = decoded;
+        }
+        return decoded;
+    }
+
+    public String getOutput(Charset charset) {
+        return charset.equals(this.charset) ? getOutput() : buffer().decode(charset);
     }
 
     public void setOutput(String output) {
-        this.output = output;
+        this.outputBuffer = null;
+        this.charset = StandardCharsets.UTF_8;
+        this.decodedOutput = output == null ? "" : output;
+        this.lineIndex = null;
+    }
+
+    void setOutputBuffer(SpillableOutput outputBuffer) {
+        this.outputBuffer = outputBuffer;
+        this.decodedOutput = null;
+        this.lineIndex = null;
+    }
+
+    /**
+     * Charset the output bytes are decoded with; UTF-8 unless the device is known to use something else.
+     */
+    public Charset getCharset() {
+        return this.charset;
+    }
+
+    public void setCharset(Charset charset) {
+        // The bytes are what gets reinterpreted, so a String-only output needs them now
+        buffer();
+        this.charset = charset;
+        this.decodedOutput = null;
+    }
+
+    /**
+     * The output as characters. Spilled output is served from a memory-mapped view, so reading
+     * it by index doesn't need the whole output on the heap; the view is decoded once and reused.
+     */
+    public CharSequence getOutputChars() {
+        if (!isOutputSpilled()) {
+            return getOutput();
+        }
+        return this.outputBuffer.chars(this.charset);
+    }
+
+    /**
+     * The raw output bytes, undecoded. Each call returns a new stream positioned at the start.
+     */
+    public InputStream openOutputStream() {
+        return buffer().openStream();
+    }
+
+    /**
+     * Size of the output in bytes.
+     */
+    public long getOutputSize() {
+        if (this.outputBuffer == null) {
+            return this.decodedOutput.getBytes(this.charset).length;
+        }
+        return this.outputBuffer.size();
+    }
+
+    /**
+     * True if the output was too big for the heap threshold and lives in a temp file.
+     */
+    public boolean isOutputSpilled() {
+        return this.outputBuffer != null && this.outputBuffer.isSpilled();
+    }
+
+    /**
+     * Number of output lines. The line index is built on first use with one pass over the bytes;
+     * no line is decoded.
+     */
+    public int lineCount() {
+        return lineIndex().lineCount();
+    }
+
+    /**
+     * Line {@code n} (from 0), without its line break. Only that line's bytes are decoded.
+     */
+    public String line(int n) {
+        LineIndex index = lineIndex();
+        if (n < 0 || n >= index.lineCount()) {
+            throw new IndexOutOfBoundsException("line " + n + ", lineCount " + index.lineCount());
+        }
+        SpillableOutput buffer = buffer();
+        return new String(buffer.read(index.start(n), index.length(n, buffer)), this.charset);
+    }
+
+    /**
+     * Lines {@code from} (inclusive) to {@code to} (exclusive), decoded one at a time as the stream is consumed.
+     */
+    public Stream<String> lines(int from, int to) {
+        LineIndex index = lineIndex();
+        if (from < 0 || to > index.lineCount() || from > to) {
+            throw new IndexOutOfBoundsException("from " + from + ", to " + to + ", lineCount " + index.lineCount());
+        }
+        return IntStream.range(from, to).mapToObj(this::line);
+    }
+
+    private LineIndex lineIndex() {
+        if (this.lineIndex == null) {
+            this.lineIndex = LineIndex.build(buffer());
+        }
+        return this.lineIndex;
+    }
+
+    /**
+     * The output bytes; made from the String, once, if the output was set as one.
+     */
+    private SpillableOutput buffer() {
+        if (this.outputBuffer == null) {
+            this.outputBuffer = SpillableOutput.wrap(this.decodedOutput.getBytes(this.charset));
+        }
+        return this.outputBuffer;
+    }
+
+    /**
+     * Stderr of an exec command, capped at {@link SSHExecutor#getMaxStderrChars()}. Shell commands
+     * run on a pty, where stderr is already part of the output, so this stays empty for them.
+     */
+    public String getErrorOutput() {
+        return this.errorOutput;
+    }
+
+    public void setErrorOutput(String errorOutput) {
+        this.errorOutput = errorOutput;
+    }
+
+    public boolean isErrorTruncated() {
+        return this.errorTruncated;
+    }
+
+    public void setErrorTruncated(boolean errorTruncated) {
+        this.errorTruncated = errorTruncated;
+    }
+
+    public ConnectionTimings getConnectionTimings() {
+        return this.connectionTimings;
+    }
+
+    public void setConnectionTimings(ConnectionTimings connectionTimings) {
+        this.connectionTimings = connectionTimings;
+    }
+
+    public long getChannelOpenMillis() {
+        return this.channelOpenMillis;
+    }
+
+    public void setChannelOpenMillis(long channelOpenMillis) {
+        this.channelOpenMillis = channelOpenMillis;
+    }
+
+    /**
+     * How long the command ran, from the channel being open to its exit; -1 if unknown.
+     */
+    public long getDurationMillis() {
+        return this.durationMillis;
+    }
+
+    public void setDurationMillis(long durationMillis) {
+        this.durationMillis = durationMillis;
+    }
+
+    /**
+     * Why the command never ran because no session could be opened, or null.
+     */
+    public SSHConnectException.Reason getFailureReason() {
+        return this.failureReason;
+    }
+
+    public void setFailureReason(SSHConnectException.Reason failureReason) {
+        this.failureReason = failureReason;
     }
 }
@@ -0,0 +1,421 @@
+package com.virima.jsch;
+
+import com.virima.utils.AsyncLog;
+import com.virima.utils.ComponentLog;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Learns, per host and per command, how long a shell's output can pause before the command is
+ * really done, and turns that into the quiet-time thresholds of the weighted-signals completion
+ * check.
+ * <p>
+ * How long output may pause differs per device and command: a Linux box answers in one burst and
+ * is done, a busy switch may think for seconds between two pages of "show tech". Every pause
+ * between two chunks of a command's output goes into a histogram for the host and one for the
+ * command's first two words. The quiet threshold is a high percentile of those pauses plus a
+ * margin, so a command is only called complete after a silence longer than almost any pause seen
+ * in the middle of its output.
+ * <p>
+ * Pauses after the command was called complete count too, for a few seconds: output that shows up
+ * then means the threshold was too short, and the next command waits longer. Until a command has
+ * enough samples of its own, it gets the fixed defaults, or the host's thresholds where those are
+ * longer: a host full of quick commands says nothing about how long a new one may pause.
+ * <p>
+ * Executors only use a model they are given. It is persisted to the file it was created with, e.g.
+ * {@link #defaultFile()}, so it survives restarts; commands are stored as a hash of their first
+ * words, never as typed. It is also saved on JVM shutdown until {@link #close()} is called.
+ */
+public final class CompletionTimingModel implements AutoCloseable {
+    private static final String CLASSNAME = "CompletionTimingModel";
+    private static final ComponentLog LOG = AsyncLog.forComponent(CLASSNAME);
+
+    // Bucket upper bounds in ms; a percentile is the bound of the bucket it falls in
+    private static final long[] BOUNDS = {
+            25, 50, 75, 100, 150, 200, 300, 400, 500, 750, 1000, 1500, 2000, 3000, 4000, 5000,
+            7500, 10_000, 15_000, 20_000, 30_000, 60_000};
+
+    // Shorter gaps are one burst split across reads, not a pause
+    private static final long MIN_GAP_MILLIS = 20;
+    // Gaps are trusted once there are this many; until then the defaults apply
+    private static final long MIN_SAMPLES = 30;
+    // Counts are halved beyond this, so the model follows a device that got slower or faster
+    private static final long MAX_SAMPLES = 2000;
+    private static final double QUIET_PERCENTILE = 0.99;
+    private static final long MIN_QUIET_MILLIS = 300;
+    private static final long MAX_QUIET_MILLIS = 15_000;
+    // How long after completion late output still counts as a pause of the command
+    static final long LATE_OUTPUT_MILLIS = 5000;
+    // How long a shell that is closed right after its command still listens for late output
+    static final long LATE_OUTPUT_PROBE_MILLIS = 500;
+    private static final int PREFIX_WORDS = 2;
+    private static final int PREFIX_HASH_LENGTH = 16;
+
+    private static final long SAVE_INTERVAL_MILLIS = 10_000L;
+
+    private final File file;
+    private final Map<String, GapHistogram> histograms = new ConcurrentHashMap<>();
+    private final Thread shutdownHook;
+    private long lastSaveMillis;
+    private boolean dirty;
+
+    public CompletionTimingModel(File file) {
+        this.file = file;
+        load();
+        this.shutdownHook = new Thread(this::save, "shell-timing-save");
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    public static File defaultFile() {
+        return new File(System.getProperty("user.dir") + File.separator + "cache" + File.separator + "shell-completion-timing.properties");
+    }
+
+    /**
+     * The thresholds for a command on a host: from the command's own pauses if there are enough,
+     * else the defaults or the host's, whichever wait longer.
+     */
+    public Thresholds thresholds(String host, String command) {
+        GapHistogram histogram = histograms.get(key(host, prefix(command)));
+        if (histogram != null && histogram.total() >= MIN_SAMPLES) {
+            return fromHistogram(histogram);
+        }
+        histogram = histograms.get(key(host, null));
+        if (histogram != null && histogram.total() >= MIN_SAMPLES) {
+            return fromHistogram(histogram).atLeast(Thresholds.DEFAULT);
+        }
+        return Thresholds.DEFAULT;
+    }
+
+    private static Thresholds fromHistogram(GapHistogram histogram) {
+        long percentile = histogram.percentile(QUIET_PERCENTILE);
+        // Margin: half the pause again, at least 200 ms for jitter
+        long quiet = Math.min(MAX_QUIET_MILLIS, Math.max(MIN_QUIET_MILLIS, percentile + Math.max(200, percentile / 2)));
+        return new Thresholds(quiet, quiet, quiet * 2, Math.max(50, Math.min(Thresholds.DEFAULT.getCheckInterval(), quiet / 4)),
+                Thresholds.DEFAULT.getRequiredScore());
+    }
+
+    /**
+     * A fresh recorder for one command's pauses; hand it to the processor while the command runs.
+     */
+    Gaps newGaps(String host, String command) {
+        return new Gaps(this, host, prefix(command));
+    }
+
+    /**
+     * Forgets everything learned about a host, e.g. after it was replaced with another platform.
+     */
+    public void forget(String host) {
+        boolean removed = histograms.keySet().removeIf(key -> key.equals(host) || key.startsWith(host + "|"));
+        if (removed) {
+            synchronized (this) {
+                dirty = true;
+            }
+        }
+    }
+
+    private void merge(String host, String prefix, GapHistogram gaps) {
+        if (gaps.total() == 0) {
+            return;
+        }
+        histograms.computeIfAbsent(key(host, null), k -> new GapHistogram()).addAll(gaps);
+        if (prefix != null) {
+            histograms.computeIfAbsent(key(host, prefix), k -> new GapHistogram()).addAll(gaps);
+        }
+        synchronized (this) {
+            dirty = true;
+        }
+        saveIfDue();
+    }
+
+    // ==================== PERSISTENCE ====================
+
+    private void saveIfDue() {
+        synchronized (this) {
+            if (System.currentTimeMillis() - lastSaveMillis < SAVE_INTERVAL_MILLIS) {
+                return;
+            }
+        }
+        save();
+    }
+
+    public synchronized void save() {
+        if (!dirty) {
+            return;
+        }
+        Properties properties = new Properties();
+        for (Map.Entry<String, GapHistogram> entry : histograms.entrySet()) {
+            properties.setProperty(entry.getKey(), entry.getValue().store());
+        }
+
+        File dir = file.getParentFile();
+        if (dir != null && !dir.exists()) {
+            dir.mkdirs();
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            properties.store(out, "Shell output pauses per host and command hash, counts per bucket up to " + BOUNDS[BOUNDS.length - 1] + " ms");
+        } catch (IOException e) {
+            LOG.error("Could not save " + file + ": " + e);
+            return;
+        }
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            tmp.renameTo(file);
+        }
+        dirty = false;
+        lastSaveMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * Saves what was learned and unregisters the shutdown hook; the model still works afterwards,
+     * but is no longer saved on shutdown.
+     */
+    @Override
+    public void close() {
+        save();
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException e) {
+            // Already shutting down; the hook saves anyway
+        }
+    }
+
+    private void load() {
+        if (!file.exists()) {
+            return;
+        }
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            properties.load(in);
+        } catch (IOException e) {
+            LOG.error("Could not load " + file + ": " + e);
+            return;
+        }
+        for (String name : properties.stringPropertyNames()) {
+            int separator = name.indexOf('|');
+            if (separator >= 0 && !isPrefixHash(name.substring(separator + 1))) {
+                // Written before commands were hashed; dropped so the next save doesn't keep the text
+                dirty = true;
+                continue;
+            }
+            GapHistogram histogram = GapHistogram.load(properties.getProperty(name));
+            if (histogram != null) {
+                histograms.put(name, histogram);
+            }
+        }
+    }
+
+    // ==================== HELPERS ====================
+
+    private static String key(String host, String prefix) {
+        return prefix == null ? host : host + "|" + prefix;
+    }
+
+    /**
+     * A hash of the first words of a command: "show interfaces status" and "show interfaces
+     * counters" pause alike, "show version" doesn't. Hashed, so a password or key typed as an
+     * argument doesn't end up in the file.
+     */
+    static String prefix(String command) {
+        if (command == null) {
+            return null;
+        }
+        String[] words = command.trim().split("\\s+", PREFIX_WORDS + 1);
+        String prefix = String.join(" ", Arrays.asList(words).subList(0, Math.min(PREFIX_WORDS, words.length)));
+        if (prefix.isEmpty()) {
+            return null;
+        }
+        return SSHTarget.fingerprint(prefix).substring(0, PREFIX_HASH_LENGTH);
+    }
+
+    private static boolean isPrefixHash(String prefix) {
+        return prefix.length() == PREFIX_HASH_LENGTH && prefix.chars().allMatch(c -> Character.digit(c, 16) >= 0);
+    }
+
+    /**
+     * Quiet-time thresholds for the weighted-signals check, in ms.
+     */
+    public static final class Thresholds {
+        /**
+         * What every host and command got before thresholds were learned.
+         */
+        public static final Thresholds DEFAULT = new Thresholds(1500, 1500, 3000, 400, 5);
+
+        private final long minimumWait;
+        private final long rawStable;
+        private final long rawStableBonus;
+        private final long checkInterval;
+        private final int requiredScore;
+
+        public Thresholds(long minimumWait, long rawStable, long rawStableBonus, long checkInterval, int requiredScore) {
+            this.minimumWait = minimumWait;
+            this.rawStable = rawStable;
+            this.rawStableBonus = rawStableBonus;
+            this.checkInterval = checkInterval;
+            this.requiredScore = requiredScore;
+        }
+
+        public long getMinimumWait() {
+            return minimumWait;
+        }
+
+        public long getRawStable() {
+            return rawStable;
+        }
+
+        public long getRawStableBonus() {
+            return rawStableBonus;
+        }
+
+        public long getCheckInterval() {
+            return checkInterval;
+        }
+
+        public int getRequiredScore() {
+            return requiredScore;
+        }
+
+        /**
+         * These thresholds, each waiting at least as long as in {@code other}.
+         */
+        Thresholds atLeast(Thresholds other) {
+            return new Thresholds(Math.max(minimumWait, other.minimumWait), Math.max(rawStable, other.rawStable),
+                    Math.max(rawStableBonus, other.rawStableBonus), Math.max(checkInterval, other.checkInterval),
+                    Math.max(requiredScore, other.requiredScore));
+        }
+
+        public String toString() {
+            return "minimumWait=" + minimumWait + "ms, rawStable=" + rawStable + "ms, rawStableBonus=" + rawStableBonus
+                    + "ms, checkInterval=" + checkInterval + "ms, requiredScore=" + requiredScore;
+        }
+    }
+
+    /**
+     * The pauses of one command as the processor sees them. Only the processor thread adds, under
+     * the processor's lock; the model takes the counts once the processor has let go of it.
+     */
+    static final class Gaps {
+        private final CompletionTimingModel model;
+        private final String host;
+        private final String prefix;
+        private final GapHistogram histogram = new GapHistogram();
+        private volatile long until = Long.MAX_VALUE;
+
+        private Gaps(CompletionTimingModel model, String host, String prefix) {
+            this.model = model;
+            this.host = host;
+            this.prefix = prefix;
+        }
+
+        /**
+         * @param now when the chunk ending the gap arrived; chunks after {@link #closeAfter} has run out are ignored
+         */
+        void add(long gapMillis, long now) {
+            if (gapMillis >= MIN_GAP_MILLIS && now <= until) {
+                histogram.add(gapMillis);
+            }
+        }
+
+        /**
+         * The command was called complete; pauses ending within the next {@code millis} still count.
+         */
+        void closeAfter(long millis) {
+            until = System.currentTimeMillis() + millis;
+        }
+
+        void commit() {
+            model.merge(host, prefix, histogram);
+        }
+    }
+
+    static final class GapHistogram {
+        private final long[] counts = new long[BOUNDS.length];
+        private long total;
+
+        synchronized void add(long gapMillis) {
+            int bucket = 0;
+            while (bucket < BOUNDS.length - 1 && gapMillis > BOUNDS[bucket]) {
+                bucket++;
+            }
+            counts[bucket]++;
+            total++;
+            decayIfFull();
+        }
+
+        synchronized void addAll(GapHistogram other) {
+            long[] otherCounts;
+            synchronized (other) {
+                otherCounts = other.counts.clone();
+            }
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += otherCounts[i];
+                total += otherCounts[i];
+            }
+            decayIfFull();
+        }
+
+        synchronized long total() {
+            return total;
+        }
+
+        synchronized long percentile(double fraction) {
+            long rank = (long) Math.ceil(total * fraction);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return BOUNDS[i];
+                }
+            }
+            return BOUNDS[BOUNDS.length - 1];
+        }
+
+        private void decayIfFull() {
+            while (total > MAX_SAMPLES) {
+                total = 0;
+                for (int i = 0; i < counts.length; i++) {
+                    counts[i] /= 2;
+                    total += counts[i];
+                }
+            }
+        }
+
+        synchronized String store() {
+            StringBuilder value = new StringBuilder();
+            for (long count : counts) {
+                if (!value.isEmpty()) {
+                    value.append(',');
+                }
+                value.append(count);
+            }
+            return value.toString();
+        }
+
+        static GapHistogram load(String value) {
+            String[] parts = value.split(",");
+            if (parts.length != BOUNDS.length) {
+                // Stored with other buckets; relearning is cheaper than converting
+                return null;
+            }
+            GapHistogram histogram = new GapHistogram();
+            try {
+                for (int i = 0; i < parts.length; i++) {
+                    histogram.counts[i] = Long.parseLong(parts[i].trim());
+                    histogram.total += histogram.counts[i];
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            return histogram;
+        }
+    }
+}
@@ -0,0 +1,364 @@
+package com.virima.jsch;
+
+import com.jcraft.jsch.HostKey;
+import com.jcraft.jsch.HostKeyRepository;
+import com.jcraft.jsch.Logger;
+import com.jcraft.jsch.Session;
+import com.jcraft.jsch.SocketFactory;
+import com.jcraft.jsch.UserInfo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Per-phase breakdown of one SSH connection: DNS, TCP connect, version exchange,
+ * key exchange, host key verification and authentication, plus the negotiated algorithms.
+ * <p>
+ * JSch has no phase callbacks, so the timings are collected from the three hooks it does
+ * offer: the socket factory (DNS + TCP), the host key repository (host key check) and the
+ * per-session logger, whose INFO messages mark the start and end of key exchange and auth.
+ * <p>
+ * Timings stay attached to the session; look them up with {@link #of(Session)}.
+ */
+public class ConnectionTimings {
+
+    private static final Map<Session, ConnectionTimings> BY_SESSION = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private final String host;
+    private final int port;
+
+    private long connectStartNanos;
+    private long tcpConnectedNanos;
+    private long versionReceivedNanos;
+    private long kexStartNanos;
+    private long kexEndNanos;
+    private long authEndNanos;
+    private long connectEndNanos;
+
+    private long dnsMillis = -1;
+    private long tcpConnectMillis = -1;
+    private long hostKeyVerifyMillis = -1;
+
+    private String kexAlgorithm;
+    private String hostKeyAlgorithm;
+    private String cipherC2S;
+    private String cipherS2C;
+    private String macC2S;
+    private String macS2C;
+    private String compressionC2S;
+    private String compressionS2C;
+    private String authMethod;
+    private final List<String> authMethodsTried = new ArrayList<>();
+    private boolean connected;
+
+    public ConnectionTimings(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    public static ConnectionTimings of(Session session) {
+        return session == null ? null : BY_SESSION.get(session);
+    }
+
+    static void attach(Session session, ConnectionTimings timings) {
+        BY_SESSION.put(session, timings);
+    }
+
+    // ==================== LIFECYCLE ====================
+
+    synchronized void connectStarted() {
+        connectStartNanos = System.nanoTime();
+    }
+
+    synchronized void connectFinished(boolean success) {
+        connectEndNanos = System.nanoTime();
+        connected = success;
+    }
+
+    // ==================== JSCH HOOKS ====================
+
+    /**
+     * Socket factory that records DNS and TCP connect time. JSch does not pass its connect
+     * timeout to custom factories, so the timeout is applied here.
+     */
+    SocketFactory socketFactory(int connectTimeoutMillis) {
+        return new SocketFactory() {
+            @Override
+            public Socket createSocket(String host, int port) throws IOException {
+                long start = System.nanoTime();
+                InetAddress address = InetAddress.getByName(host);
+                long resolved = System.nanoTime();
+
+                Socket socket = new Socket();
+                try {
+                    socket.setTcpNoDelay(true);
+                    socket.connect(new InetSocketAddress(address, port), connectTimeoutMillis);
+                } catch (IOException e) {
+                    socket.close();
+                    throw e;
+                }
+                long connected = System.nanoTime();
+
+                synchronized (ConnectionTimings.this) {
+                    dnsMillis = toMillis(resolved - start);
+                    tcpConnectMillis = toMillis(connected - resolved);
+                    tcpConnectedNanos = connected;
+                }
+                return socket;
+            }
+
+            @Override
+            public InputStream getInputStream(Socket socket) throws IOException {
+                return socket.getInputStream();
+            }
+
+            @Override
+            public OutputStream getOutputStream(Socket socket) throws IOException {
+                return socket.getOutputStream();
+            }
+        };
+    }
+
+    /**
+     * Wraps the host key repository to time the host key check.
+     */
+    HostKeyRepository hostKeyRepository(HostKeyRepository delegate) {
+        return new HostKeyRepository() {
+            @Override
+            public int check(String host, byte[] key) {
+                long start = System.nanoTime();
+                try {
+                    return delegate.check(host, key);
+                } finally {
+                    synchronized (ConnectionTimings.this) {
+                        hostKeyVerifyMillis = toMillis(System.nanoTime() - start);
+                    }
+                }
+            }
+
+            @Override
+            public void add(HostKey hostkey, UserInfo ui) {
+                delegate.add(hostkey, ui);
+            }
+
+            @Override
+            public void remove(String host, String type) {
+                delegate.remove(host, type);
+            }
+
+            @Override
+            public void remove(String host, String type, byte[] key) {
+                delegate.remove(host, type, key);
+            }
+
+            @Override
+            public String getKnownHostsRepositoryID() {
+                return delegate.getKnownHostsRepositoryID();
+            }
+
+            @Override
+            public HostKey[] getHostKey() {
+                return delegate.getHostKey();
+            }
+
+            @Override
+            public HostKey[] getHostKey(String host, String type) {
+                return delegate.getHostKey(host, type);
+            }
+        };
+    }
+
+    /**
+     * Session logger that reads phase boundaries and negotiated algorithms from JSch's
+     * INFO messages, then forwards to the delegate if it wants the level.
+     */
+    Logger logger(Logger delegate) {
+        return new Logger() {
+            @Override
+            public boolean isEnabled(int level) {
+                return level == Logger.INFO || (delegate != null && delegate.isEnabled(level));
+            }
+
+            @Override
+            public void log(int level, String message) {
+                if (level == Logger.INFO) {
+                    onMessage(message);
+                }
+                if (delegate != null && delegate.isEnabled(level)) {
+                    delegate.log(level, message);
+                }
+            }
+        };
+    }
+
+    synchronized void onMessage(String message) {
+        long now = System.nanoTime();
+        if (message.startsWith("Remote version string:")) {
+            versionReceivedNanos = now;
+        } else if (message.startsWith("SSH_MSG_KEXINIT")) {
+            if (kexStartNanos == 0) {
+                kexStartNanos = now;
+            }
+        } else if (message.startsWith("SSH_MSG_NEWKEYS received")) {
+            kexEndNanos = now;
+        } else if (message.startsWith("kex: algorithm: ")) {
+            kexAlgorithm = message.substring("kex: algorithm: ".length()).trim();
+        } else if (message.startsWith("kex: host key algorithm: ")) {
+            hostKeyAlgorithm = message.substring("kex: host key algorithm: ".length()).trim();
+        } else if (message.startsWith("kex: server->client cipher: ")) {
+            String[] parts = parseCipherLine(message.substring("kex: server->client cipher: ".length()));
+            cipherS2C = parts[0];
+            macS2C = parts[1];
+            compressionS2C = parts[2];
+        } else if (message.startsWith("kex: client->server cipher: ")) {
+            String[] parts = parseCipherLine(message.substring("kex: client->server cipher: ".length()));
+            cipherC2S = parts[0];
+            macC2S = parts[1];
+            compressionC2S = parts[2];
+        } else if (message.startsWith("Next authentication method: ")) {
+            authMethodsTried.add(message.substring("Next authentication method: ".length()).trim());
+        } else if (message.startsWith("Authentication succeeded (")) {
+            authEndNanos = now;
+            int end = message.indexOf(')');
+            authMethod = message.substring("Authentication succeeded (".length(), end > 0 ? end : message.length());
+        }
+    }
+
+    // Format: "aes128-ctr MAC: hmac-sha2-256 compression: none"
+    private static String[] parseCipherLine(String line) {
+        String cipher = line;
+        String mac = null;
+        String compression = null;
+        int macIndex = line.indexOf(" MAC: ");
+        int compressionIndex = line.indexOf(" compression: ");
+        if (macIndex >= 0) {
+            cipher = line.substring(0, macIndex);
+            mac = line.substring(macIndex + " MAC: ".length(), compressionIndex > macIndex ? compressionIndex : line.length());
+        }
+        if (compressionIndex >= 0) {
+            if (macIndex < 0) {
+                cipher = line.substring(0, compressionIndex);
+            }
+            compression = line.substring(compressionIndex + " compression: ".length());
+        }
+        return new String[]{cipher.trim(), mac == null ? null : mac.trim(), compression == null ? null : compression.trim()};
+    }
+
+    private static long toMillis(long nanos) {
+        return nanos / 1_000_000L;
+    }
+
+    private static long between(long startNanos, long endNanos) {
+        return startNanos == 0 || endNanos == 0 ? -1 : toMillis(endNanos - startNanos);
+    }
+
+    // ==================== ACCESSORS ====================
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public synchronized boolean isConnected() {
+        return connected;
+    }
+
+    public synchronized long getDnsMillis() {
+        return dnsMillis;
+    }
+
+    public synchronized long getTcpConnectMillis() {
+        return tcpConnectMillis;
+    }
+
+    /** Time from TCP connect until the server's version string arrived. */
+    public synchronized long getVersionExchangeMillis() {
+        return between(tcpConnectedNanos, versionReceivedNanos);
+    }
+
+    /** Key exchange from the first KEXINIT to NEWKEYS; includes host key verification. */
+    public synchronized long getKexMillis() {
+        return between(kexStartNanos, kexEndNanos);
+    }
+
+    public synchronized long getHostKeyVerifyMillis() {
+        return hostKeyVerifyMillis;
+    }
+
+    /** From NEWKEYS until authentication succeeded, across every method tried. */
+    public synchronized long getAuthMillis() {
+        return between(kexEndNanos, authEndNanos);
+    }
+
+    public synchronized long getTotalMillis() {
+        return between(connectStartNanos, connectEndNanos);
+    }
+
+    public synchronized String getKexAlgorithm() {
+        return kexAlgorithm;
+    }
+
+    public synchronized String getHostKeyAlgorithm() {
+        return hostKeyAlgorithm;
+    }
+
+    public synchronized String getCipherC2S() {
+        return cipherC2S;
+    }
+
+    public synchronized String getCipherS2C() {
+        return cipherS2C;
+    }
+
+    public synchronized String getMacC2S() {
+        return macC2S;
+    }
+
+    public synchronized String getMacS2C() {
+        return macS2C;
+    }
+
+    public synchronized String getCompressionC2S() {
+        return compressionC2S;
+    }
+
+    public synchronized String getCompressionS2C() {
+        return compressionS2C;
+    }
+
+    public synchronized String getAuthMethod() {
+        return authMethod;
+    }
+
+    public synchronized List<String> getAuthMethodsTried() {
+        return new ArrayList<>(authMethodsTried);
+    }
+
+    public synchronized String toString() {
+        return host + ":" + port
+                + " total=" + getTotalMillis() + "ms"
+                + " dns=" + dnsMillis + "ms"
+                + " tcp=" + tcpConnectMillis + "ms"
+                + " version=" + getVersionExchangeMillis() + "ms"
+                + " kex=" + getKexMillis() + "ms"
+                + " hostKey=" + hostKeyVerifyMillis + "ms"
+                + " auth=" + getAuthMillis() + "ms"
+                + " [kex=" + kexAlgorithm
+                + " hostKey=" + hostKeyAlgorithm
+                + " cipher=" + cipherC2S + "/" + cipherS2C
+                + " mac=" + macC2S + "/" + macS2C
+                + " auth=" + authMethod + " tried=" + authMethodsTried + "]";
+    }
+}
@@ -28,14 +28,27 @@ public class CustomUserInfo implements UserInfo, UIKeyboardInteractive{
 	}
 	
 	 
+	/**
+	 * Answers password-style prompts with the password. Returning null for anything else
+	 * (OTP codes, "press enter", menus) cancels keyboard-interactive, so JSch moves on to the
+	 * next method instead of sending the password to a prompt that did not ask for it.
+	 */
 	public String[] promptKeyboardInteractive(String destination,
 	String name,
 	String instruction,
 	String[] prompt,
 	boolean[] echo){
-	
-		String [] response = new String[1];
-		response[0] = password;
+
+		String [] response = new String[prompt.length];
+		for (int i = 0; i < prompt.length; i++) {
+			String text = prompt[i] == null ? "" : prompt[i].toLowerCase();
+			boolean hidden = echo == null || i >= echo.length || !echo[i];
+			if (text.contains("password") || (prompt.length == 1 && hidden)) {
+				response[i] = password;
+			} else {
+				return null;
+			}
+		}
 		return response;
 	}
 	@Override
@@ -0,0 +1,178 @@
+package com.virima.jsch;
+
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * How to drive the CLI of one kind of device: which pty to ask for, how to recognize its prompt
+ * and pager, and which commands to run after login so output isn't paged in the first place.
+ * <p>
+ * Once a host's profile is known, its shells are opened with the right pty and geometry and
+ * paging is switched off up front, instead of being handled one "--More--" at a time.
+ * {@link DeviceProfileRegistry} picks the profile for a host from its banner and first prompt.
+ */
+public final class DeviceProfile {
+
+    public static final int DEFAULT_WIDTH = 200;
+    public static final int DEFAULT_HEIGHT = 24;
+
+    // Cisco-style: Switch>, Router#, Switch(config-if)#, Switch:1>
+    private static final Pattern CISCO_PROMPT = Pattern.compile("[\\w\\-\\.:]+(?:\\([\\w\\-]+\\))?[#>]\\s*$");
+    private static final Pattern CISCO_MORE = Pattern.compile("(?i)--\\s*more\\s*--");
+
+    /**
+     * What every device got before profiles existed; used until a host is recognized. Its prompt
+     * pattern takes any line ending in a prompt character:
+     * <ul>
+     *   <li>Cisco user mode and privileged: Switch&gt;, Router#</li>
+     *   <li>Cisco config: Switch(config)#, Switch(config-if)#</li>
+     *   <li>Linux: user@host$, root@host#</li>
+     *   <li>With stack/port: Switch:1&gt;, Switch:2#</li>
+     *   <li>Bare prompts: &gt;, #, $</li>
+     * </ul>
+     */
+    public static final DeviceProfile GENERIC = new DeviceProfile("generic", null,
+            Pattern.compile("[\\w\\-\\.@:]*(?:\\([\\w\\-]+\\))?[#>$%]\\s*$"),
+            Pattern.compile("(?i)(--\\s*more\\s*--|<---\\s*more\\s*--->|More:.*<space>.*Quit:.*q)"),
+            List.of());
+
+    public static final DeviceProfile CISCO_NXOS = new DeviceProfile("cisco-nxos",
+            Pattern.compile("(?i)(NX-OS|Nexus Operating System)"),
+            CISCO_PROMPT, CISCO_MORE,
+            List.of("terminal length 0", "terminal width 511"));
+
+    public static final DeviceProfile CISCO_IOS = new DeviceProfile("cisco-ios",
+            Pattern.compile("(?i)(Cisco IOS|IOS-XE|User Access Verification)"),
+            CISCO_PROMPT, CISCO_MORE,
+            List.of("terminal length 0", "terminal width 511"));
+
+    public static final DeviceProfile JUNOS = new DeviceProfile("junos",
+            Pattern.compile("(?i)(JUNOS|Juniper)"),
+            // user@router> in operational mode, user@router# in configuration mode
+            Pattern.compile("[\\w\\-\\.]+@[\\w\\-\\.]+[>#%]\\s*$"),
+            Pattern.compile("(?i)---\\s*\\(more(\\s+\\d+%)?\\)\\s*---"),
+            List.of("set cli screen-length 0", "set cli screen-width 0"));
+
+    public static final DeviceProfile ARISTA_EOS = new DeviceProfile("arista-eos",
+            Pattern.compile("(?i)(Arista|\\bEOS\\b)"),
+            CISCO_PROMPT, CISCO_MORE,
+            List.of("terminal length 0", "terminal width 32767"));
+
+    public static final DeviceProfile HP_ARUBA = new DeviceProfile("hp-aruba",
+            Pattern.compile("(?i)(ProCurve|Aruba|Hewlett[- ]Packard|HPE? .*Switch)"),
+            CISCO_PROMPT, CISCO_MORE,
+            List.of("no page"))
+            // The ProCurve CLI redraws heavily and behaves best on a real terminal type
+            .withTerminal("vt100", DEFAULT_WIDTH, DEFAULT_HEIGHT);
+
+    public static final DeviceProfile LINUX = new DeviceProfile("linux",
+            Pattern.compile("(?i)(GNU/Linux|Ubuntu|Debian|Red Hat|CentOS|Rocky|AlmaLinux|SUSE|Fedora)"),
+            Pattern.compile("[\\w\\-\\.@:~/\\[\\] ]*[$#]\\s*$"),
+            Pattern.compile("(?i)(--\\s*more\\s*--|\\(END\\))"),
+            List.of());
+
+    private final String name;
+    private final Pattern detectPattern;
+    private final Pattern promptPattern;
+    private final Pattern morePattern;
+    private final List<String> setupCommands;
+    private final String ptyType;
+    private final int width;
+    private final int height;
+    private final Boolean plainText;
+
+    /**
+     * @param detectPattern found in the banner or first prompt of this kind of device; null if
+     *                      the profile is never picked automatically
+     * @param setupCommands run once after login on every new shell, e.g. to turn paging off
+     */
+    public DeviceProfile(String name, Pattern detectPattern, Pattern promptPattern, Pattern morePattern,
+                         List<String> setupCommands) {
+        this(name, detectPattern, promptPattern, morePattern, setupCommands, null, DEFAULT_WIDTH, DEFAULT_HEIGHT, null);
+    }
+
+    private DeviceProfile(String name, Pattern detectPattern, Pattern promptPattern, Pattern morePattern,
+                          List<String> setupCommands, String ptyType, int width, int height, Boolean plainText) {
+        this.name = name;
+        this.detectPattern = detectPattern;
+        this.promptPattern = promptPattern;
+        this.morePattern = morePattern;
+        this.setupCommands = List.copyOf(setupCommands);
+        this.ptyType = ptyType;
+        this.width = width;
+        this.height = height;
+        this.plainText = plainText;
+    }
+
+    /**
+     * The same profile with its own pty type and size. Without it the pty is vt100 for admin
+     * commands and dumb otherwise, 200x24.
+     */
+    public DeviceProfile withTerminal(String ptyType, int width, int height) {
+        return new DeviceProfile(name, detectPattern, promptPattern, morePattern, setupCommands, ptyType, width, height, plainText);
+    }
+
+    /**
+     * The same profile with plain-text rendering forced on or off. Without it, output on a dumb
+     * pty starts out as plain text and is handed to JediTerm once it addresses the cursor; on any
+     * other pty JediTerm renders everything.
+     */
+    public DeviceProfile withPlainText(boolean plainText) {
+        return new DeviceProfile(name, detectPattern, promptPattern, morePattern, setupCommands, ptyType, width, height, plainText);
+    }
+
+    /**
+     * True if the banner or prompt text looks like this kind of device.
+     */
+    public boolean matches(String text) {
+        return detectPattern != null && detectPattern.matcher(text).find();
+    }
+
+    /**
+     * The pty type to request: the profile's own, or the admin/non-admin default.
+     */
+    public String getPtyType(boolean isAdmin) {
+        if (ptyType != null) {
+            return ptyType;
+        }
+        return isAdmin ? "vt100" : "dumb";
+    }
+
+    /**
+     * True if shells start with the plain-text screen rather than JediTerm.
+     */
+    public boolean isPlainText(boolean isAdmin) {
+        if (plainText != null) {
+            return plainText;
+        }
+        return "dumb".equals(getPtyType(isAdmin));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Pattern getPromptPattern() {
+        return promptPattern;
+    }
+
+    public Pattern getMorePattern() {
+        return morePattern;
+    }
+
+    public List<String> getSetupCommands() {
+        return setupCommands;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,124 @@
+package com.virima.jsch;
+
+import com.virima.utils.AsyncLog;
+import com.virima.utils.ComponentLog;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Picks a {@link DeviceProfile} for a host and remembers it.
+ * <p>
+ * The pty is requested before the device has said anything, so the first shell to an unknown
+ * host starts with {@link DeviceProfile#GENERIC}. Once logged in, the banner is matched against
+ * the profiles and the first prompt checked against the match, the host's setup commands run, and
+ * a match is cached per host and port: later shells to the same host get the right pty,
+ * geometry and patterns from the start. A shell whose prompt doesn't fit the cached profile
+ * drops it again.
+ * <p>
+ * Profiles added with {@link #register(DeviceProfile)} are tried before the built-in ones, so
+ * a site can override detection for its own gear.
+ */
+public class DeviceProfileRegistry {
+    private static final String CLASSNAME = "DeviceProfileRegistry";
+    private static final ComponentLog LOG = AsyncLog.forComponent(CLASSNAME);
+
+    private static final DeviceProfileRegistry DEFAULT = new DeviceProfileRegistry();
+
+    // Most specific first: an NX-OS banner also says Cisco
+    private static final List<DeviceProfile> BUILT_IN = List.of(
+            DeviceProfile.CISCO_NXOS,
+            DeviceProfile.CISCO_IOS,
+            DeviceProfile.JUNOS,
+            DeviceProfile.ARISTA_EOS,
+            DeviceProfile.HP_ARUBA,
+            DeviceProfile.LINUX);
+
+    private final List<DeviceProfile> custom = new CopyOnWriteArrayList<>();
+    private final Map<String, DeviceProfile> hosts = new ConcurrentHashMap<>();
+
+    /**
+     * The registry executors use unless given their own; its host cache lives as long as the process.
+     */
+    public static DeviceProfileRegistry getDefault() {
+        return DEFAULT;
+    }
+
+    public void register(DeviceProfile profile) {
+        custom.add(0, profile);
+    }
+
+    /**
+     * Fixes the profile for a host, skipping detection, e.g. from an inventory that knows the platform.
+     */
+    public void setProfile(String host, int port, DeviceProfile profile) {
+        hosts.put(host + ":" + port, profile);
+    }
+
+    /**
+     * The cached profile for the host, or null if it hasn't been recognized yet.
+     */
+    public DeviceProfile getProfile(String host, int port) {
+        return hosts.get(host + ":" + port);
+    }
+
+    /**
+     * The profile to open a shell to the host with: the cached one, or generic.
+     */
+    DeviceProfile forHost(String host, int port) {
+        DeviceProfile profile = hosts.get(host + ":" + port);
+        return profile != null ? profile : DeviceProfile.GENERIC;
+    }
+
+    /**
+     * Matches the banner text and caches the result for the host. A banner is only trusted if the
+     * prompt the device ended on has the profile's shape too: a Cisco jump host whose MOTD talks
+     * about Ubuntu is not a Linux box. A host nothing matches gets generic but is not cached: a
+     * device that shows no banner on this login may well show one on the next, and matching is
+     * only a few regexes over text that was read anyway.
+     *
+     * @param text   everything the device sent up to and including its first prompt
+     * @param screen the screen at that point; its last line is the prompt
+     */
+    DeviceProfile detect(String host, int port, String text, String screen) {
+        String prompt = lastLine(screen);
+        DeviceProfile detected = DeviceProfile.GENERIC;
+        for (List<DeviceProfile> profiles : List.of(custom, BUILT_IN)) {
+            for (DeviceProfile profile : profiles) {
+                if (profile.matches(text) && profile.getPromptPattern().matcher(prompt).find()) {
+                    detected = profile;
+                    break;
+                }
+            }
+            if (detected != DeviceProfile.GENERIC) {
+                break;
+            }
+        }
+        DeviceProfile result = detected;
+        LOG.debug(() -> "Device profile for " + host + ":" + port + ": " + result + " (prompt '" + prompt + "')");
+        if (result != DeviceProfile.GENERIC) {
+            hosts.put(host + ":" + port, result);
+        }
+        return result;
+    }
+
+    /**
+     * Drops the cached profile, e.g. when a shell's prompt no longer fits it; the next shell detects again.
+     */
+    public void forget(String host, int port) {
+        hosts.remove(host + ":" + port);
+    }
+
+    private static String lastLine(String screen) {
+        String[] lines = screen.split("\\r?\\n");
+        for (int i = lines.length - 1; i >= 0; i--) {
+            String line = lines[i].trim();
+            if (!line.isEmpty()) {
+                return line;
+            }
+        }
+        return "";
+    }
+}
@@ -0,0 +1,394 @@
+package com.virima.jsch;
+
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+
+/**
+ * Runs a list of commands as one script over a single exec channel and splits the output back
+ * into one {@link CommandResult} per command.
+ * <p>
+ * Each command runs in its own subshell between a begin and an end marker line; the end marker
+ * carries the command's exit status. The markers contain a random token, so command output can't
+ * fake them. Timing per command is measured by when its markers arrive.
+ * <p>
+ * The script is POSIX sh, read by {@code sh -s} from stdin rather than passed as an argument, so
+ * the login shell never parses it: csh and tcsh reject a quoted argument that spans lines. Each
+ * command gets /dev/null as stdin, as it did under {@code sh -c}, so nothing reads the rest of
+ * the script. The host does need an sh, so this is for Linux/Unix hosts, not network OS CLIs.
+ */
+final class ExecBatch {
+
+    private final String token;
+    private final List<String> commands;
+    private final boolean isAdmin;
+
+    ExecBatch(List<String> commands, boolean isAdmin) {
+        this.token = newToken();
+        this.commands = commands;
+        this.isAdmin = isAdmin;
+    }
+
+    /**
+     * A marker token no command output will contain by accident.
+     */
+    static String newToken() {
+        byte[] random = new byte[8];
+        new SecureRandom().nextBytes(random);
+        return "__VIRIMA_" + HexFormat.of().formatHex(random);
+    }
+
+    List<CommandResult> run(Session session, int spillThresholdBytes, int maxStderrChars) throws JSchException {
+        int count = commands.size();
+        OutputStream[] outputs = new OutputStream[count];
+        OutputStream[] errors = new OutputStream[count];
+        for (int i = 0; i < count; i++) {
+            outputs[i] = new SpillableOutput(spillThresholdBytes);
+            errors[i] = new CappedText(maxStderrChars);
+        }
+        MarkerSplitter stdout = new MarkerSplitter(token, outputs);
+        MarkerSplitter stderr = new MarkerSplitter(token, errors);
+
+        CommandResult script;
+        if (isAdmin) {
+            // Channel stdin would be the pty, which echoes it back; pipe the script in from printf
+            script = SSHExecutor.runExec(session, "printf %b " + escapeForPrintf(script()) + " | sh -s", isAdmin, null, stdout, stderr, chunk -> { });
+        } else {
+            script = SSHExecutor.runExec(session, "sh -s", isAdmin, script().getBytes(StandardCharsets.UTF_8), stdout, stderr, chunk -> { });
+        }
+
+        List<CommandResult> results = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            boolean completed = stdout.exitCodes[i] != null;
+            CommandResult result = new CommandResult(completed, completed ? stdout.exitCodes[i] : -1, "");
+            result.setOutputBuffer((SpillableOutput) outputs[i]);
+            CappedText error = (CappedText) errors[i];
+            result.setErrorOutput(error.toString());
+            result.setErrorTruncated(error.isTruncated());
+            if (completed) {
+                result.setDurationMillis((stdout.endNanos[i] - stdout.startNanos[i]) / 1_000_000);
+            }
+            result.setConnectionTimings(script.getConnectionTimings());
+            result.setChannelOpenMillis(script.getChannelOpenMillis());
+            results.add(result);
+        }
+        return results;
+    }
+
+    /**
+     * The remote script. With a pty stderr is merged into stdout, so its markers are only
+     * written once.
+     */
+    String script() {
+        StringBuilder script = new StringBuilder();
+        for (int i = 0; i < commands.size(); i++) {
+            String begin = token + " B " + i;
+            String end = token + " E " + i;
+            script.append("printf '%s\\n' '").append(begin).append("'\n");
+            if (!isAdmin) {
+                script.append("printf '%s\\n' '").append(begin).append("' >&2\n");
+            }
+            script.append("(\n").append(commands.get(i)).append("\n) </dev/null\n");
+            script.append("__virima_rc=$?\n");
+            // The leading newline puts the marker on its own line even if the output didn't end
+            // with one; the splitter drops it again
+            script.append("printf '\\n%s %s\\n' '").append(end).append("' \"$__virima_rc\"\n");
+            if (!isAdmin) {
+                script.append("printf '\\n%s %s\\n' '").append(end).append("' \"$__virima_rc\" >&2\n");
+            }
+        }
+        return script.toString();
+    }
+
+    /**
+     * Quotes text as a single-line printf %b argument that sh and csh parse alike: line breaks,
+     * quotes and csh's history character become octal escapes, so the quoted word holds none of
+     * the characters csh treats specially inside single quotes.
+     */
+    static String escapeForPrintf(String text) {
+        StringBuilder escaped = new StringBuilder(text.length() + 16).append('\'');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '\\' -> escaped.append("\\\\");
+                case '\n' -> escaped.append("\\n");
+                case '\'' -> escaped.append("\\0047");
+                case '!' -> escaped.append("\\0041");
+                default -> escaped.append(c);
+            }
+        }
+        return escaped.append('\'').toString();
+    }
+
+    // ==================== MARKER SPLITTER ====================
+
+    /**
+     * Routes a byte stream to one target per command, cutting at the marker lines.
+     * <p>
+     * Lines are only held back while they could still be a marker (they start with the token and
+     * are short); anything else streams straight through, so a huge output line costs nothing
+     * extra. A line break is written lazily, so the one added in front of an end marker can be dropped.
+     */
+    static final class MarkerSplitter extends OutputStream {
+        private static final byte[] LF = {'\n'};
+        private static final byte[] CRLF = {'\r', '\n'};
+        private static final byte[] CR = {'\r'};
+
+        private final byte[] token;
+        private final OutputStream[] targets;
+        private final byte[] line;
+        private int lineLength;
+        private boolean passthrough;
+        // A streamed line's last chunk ended in CR; the next byte tells whether it was a line break
+        private boolean heldCr;
+        private byte[] pendingBreak;
+        private int current = -1;
+
+        final Integer[] exitCodes;
+        final long[] startNanos;
+        final long[] endNanos;
+
+        MarkerSplitter(String token, OutputStream[] targets) {
+            this.token = token.getBytes(StandardCharsets.US_ASCII);
+            this.targets = targets;
+            this.line = new byte[this.token.length + 32];
+            this.exitCodes = new Integer[targets.length];
+            this.startNanos = new long[targets.length];
+            this.endNanos = new long[targets.length];
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            int i = off;
+            int end = off + len;
+            while (i < end) {
+                if (passthrough) {
+                    if (heldCr) {
+                        heldCr = false;
+                        if (b[i] == '\n') {
+                            pendingBreak = CRLF;
+                            passthrough = false;
+                            i++;
+                            continue;
+                        }
+                        writeTarget(CR, 0, 1);
+                    }
+                    int newline = indexOf(b, i, end);
+                    int stop = newline < 0 ? end : newline;
+                    // A CR before the line feed is part of the line break, which is dropped before a marker
+                    int content = stop > i && b[stop - 1] == '\r' ? stop - 1 : stop;
+                    writeTarget(b, i, content - i);
+                    if (newline < 0) {
+                        heldCr = content < stop;
+                        return;
+                    }
+                    pendingBreak = content < stop ? CRLF : LF;
+                    passthrough = false;
+                    i = newline + 1;
+                    continue;
+                }
+                byte c = b[i++];
+                if (c == '\n') {
+                    endLine();
+                    continue;
+                }
+                line[lineLength++] = c;
+                if (!couldBeMarker()) {
+                    flushPendingBreak();
+                    writeTarget(line, 0, lineLength);
+                    lineLength = 0;
+                    passthrough = true;
+                }
+            }
+        }
+
+        private boolean couldBeMarker() {
+            if (lineLength == line.length) {
+                return false;
+            }
+            int last = lineLength - 1;
+            if (line[last] == '\r') {
+                // Maybe the CR of a CRLF; the next byte decides
+                return true;
+            }
+            if (last > 0 && line[last - 1] == '\r') {
+                return false;
+            }
+            return lineLength > token.length || line[last] == token[last];
+        }
+
+        private void endLine() throws IOException {
+            int length = lineLength;
+            byte[] lineBreak = LF;
+            if (length > 0 && line[length - 1] == '\r') {
+                length--;
+                lineBreak = CRLF;
+            }
+            lineLength = 0;
+            if (!handleMarker(length)) {
+                flushPendingBreak();
+                writeTarget(line, 0, length);
+                pendingBreak = lineBreak;
+            }
+        }
+
+        private boolean handleMarker(int length) {
+            if (length <= token.length || line[token.length] != ' ') {
+                return false;
+            }
+            for (int i = 0; i < token.length; i++) {
+                if (line[i] != token[i]) {
+                    return false;
+                }
+            }
+            String[] parts = new String(line, token.length + 1, length - token.length - 1, StandardCharsets.US_ASCII).split(" ");
+            try {
+                int index = Integer.parseInt(parts[1]);
+                if (index < 0 || index >= targets.length) {
+                    return false;
+                }
+                if (parts[0].equals("B") && parts.length == 2) {
+                    current = index;
+                    startNanos[index] = System.nanoTime();
+                } else if (parts[0].equals("E") && parts.length == 3 && index == current) {
+                    exitCodes[index] = Integer.parseInt(parts[2]);
+                    endNanos[index] = System.nanoTime();
+                    current = -1;
+                } else {
+                    return false;
+                }
+            } catch (RuntimeException e) {
+                return false;
+            }
+            // The break before a marker belongs to the script, not the command
+            pendingBreak = null;
+            return true;
+        }
+
+        private void flushPendingBreak() throws IOException {
+            if (pendingBreak != null) {
+                byte[] lineBreak = pendingBreak;
+                pendingBreak = null;
+                writeTarget(lineBreak, 0, lineBreak.length);
+            }
+        }
+
+        private void writeTarget(byte[] b, int off, int len) throws IOException {
+            if (current >= 0 && len > 0) {
+                targets[current].write(b, off, len);
+            }
+        }
+
+        private static int indexOf(byte[] b, int from, int to) {
+            for (int i = from; i < to; i++) {
+                if (b[i] == '\n') {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Flushes what is left and closes every target. Commands whose end marker never came keep
+         * whatever output they produced.
+         */
+        @Override
+        public void close() throws IOException {
+            if (!passthrough && lineLength > 0) {
+                flushPendingBreak();
+                writeTarget(line, 0, lineLength);
+            }
+            if (heldCr) {
+                writeTarget(CR, 0, 1);
+            }
+            flushPendingBreak();
+            for (OutputStream target : targets) {
+                target.close();
+            }
+        }
+    }
+
+    /**
+     * Decodes one command's stderr and keeps the first {@code maxChars} characters in a
+     * {@link BoundedText}, the same cap exec stderr gets. A character split across two writes is
+     * held until its remaining bytes arrive.
+     */
+    static final class CappedText extends OutputStream {
+        private final BoundedText text;
+        private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private final ByteBuffer pending = ByteBuffer.allocate(8);
+        private final CharBuffer chars = CharBuffer.allocate(1024);
+
+        CappedText(int maxChars) {
+            this.text = new BoundedText(maxChars);
+        }
+
+        @Override
+        public synchronized void write(int b) {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            ByteBuffer in = ByteBuffer.wrap(b, off, len);
+            // Finish a character left over from the last write first
+            while (pending.position() > 0 && in.hasRemaining()) {
+                pending.put(in.get());
+                pending.flip();
+                decode(pending, false);
+                pending.compact();
+            }
+            decode(in, false);
+            pending.put(in);
+        }
+
+        private void decode(ByteBuffer in, boolean endOfInput) {
+            while (decoder.decode(in, chars, endOfInput).isOverflow()) {
+                drain();
+            }
+            drain();
+        }
+
+        private void drain() {
+            chars.flip();
+            text.append(chars.array(), 0, chars.limit());
+            chars.clear();
+        }
+
+        @Override
+        public synchronized void close() {
+            pending.flip();
+            decode(pending, true);
+            pending.clear();
+            decoder.flush(chars);
+            drain();
+        }
+
+        synchronized boolean isTruncated() {
+            return text.isTruncated();
+        }
+
+        @Override
+        public synchronized String toString() {
+            return text.toString();
+        }
+    }
+}
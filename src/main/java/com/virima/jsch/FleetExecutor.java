@@ -0,0 +1,119 @@
+package com.virima.jsch;
+
+import com.virima.utils.AsyncLog;
+import com.virima.utils.ComponentLog;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Runs one command on many hosts at once.
+ * <p>
+ * Every host gets its own virtual thread, so thousands of hosts waiting on the network
+ * cost almost nothing; a global semaphore caps how many are in flight so we don't open
+ * more sockets than the box (or the network) can handle. Sessions come from an
+ * {@link SSHSessionPool}, so the next poll of the same fleet skips the handshakes.
+ * <p>
+ * Results are handed to a {@link ResultListener} as each host finishes, not at the end.
+ */
+public class FleetExecutor implements AutoCloseable {
+    private static final String CLASSNAME = "FleetExecutor";
+    private static final ComponentLog LOG = AsyncLog.forComponent(CLASSNAME);
+
+    public static final int DEFAULT_MAX_CONCURRENCY = 512;
+
+    private final Semaphore permits;
+    private final SSHSessionPool pool;
+    private final boolean ownsPool;
+
+    /**
+     * Receives one result per host. Called concurrently from worker threads, so implementations must be thread-safe.
+     */
+    @FunctionalInterface
+    public interface ResultListener {
+        void onResult(SSHTarget target, CommandResult result);
+    }
+
+    public FleetExecutor() {
+        this(DEFAULT_MAX_CONCURRENCY, new SSHSessionPool(), true);
+    }
+
+    public FleetExecutor(int maxConcurrency, SSHSessionPool pool) {
+        this(maxConcurrency, pool, false);
+    }
+
+    private FleetExecutor(int maxConcurrency, SSHSessionPool pool, boolean ownsPool) {
+        if (maxConcurrency < 1) {
+            throw new IllegalArgumentException("maxConcurrency must be >= 1");
+        }
+        this.permits = new Semaphore(maxConcurrency);
+        this.pool = pool;
+        this.ownsPool = ownsPool;
+    }
+
+    /**
+     * Runs the command on every target and streams each result to the listener as it completes.
+     * Blocks until all hosts have reported.
+     */
+    public void execute(List<SSHTarget> targets, String command, boolean execChannel, boolean isAdmin,
+                        int sshExecutionTimeInSeconds, ResultListener listener) throws InterruptedException {
+        long startTime = System.currentTimeMillis();
+
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (SSHTarget target : targets) {
+                // Acquire before submitting so a 10k-host list doesn't park 10k threads on the semaphore
+                permits.acquire();
+                executor.submit(() -> {
+                    CommandResult result;
+                    try {
+                        result = SSHCommandRunner.executeCommand(pool, target, command, execChannel, isAdmin, sshExecutionTimeInSeconds);
+                    } catch (Throwable t) {
+                        LOG.error(target + ": " + t, t);
+                        result = new CommandResult(false, -1, "");
+                    } finally {
+                        permits.release();
+                    }
+                    try {
+                        listener.onResult(target, result);
+                    } catch (Throwable t) {
+                        // The submitted task's Future is never looked at, so this would vanish otherwise
+                        LOG.error(target + ": result listener failed: " + t, t);
+                    }
+                });
+            }
+        }
+
+        LOG.info(() -> "Completed " + targets.size() + " hosts in " + (System.currentTimeMillis() - startTime) + " ms");
+    }
+
+    /**
+     * Runs the command on every target and collects the results, in the order of the target list.
+     */
+    public Map<SSHTarget, CommandResult> executeAll(List<SSHTarget> targets, String command, boolean execChannel,
+                                                   boolean isAdmin, int sshExecutionTimeInSeconds) throws InterruptedException {
+        Map<SSHTarget, CommandResult> collected = new ConcurrentHashMap<>();
+        execute(targets, command, execChannel, isAdmin, sshExecutionTimeInSeconds, collected::put);
+
+        Map<SSHTarget, CommandResult> ordered = new LinkedHashMap<>();
+        for (SSHTarget target : targets) {
+            ordered.put(target, collected.get(target));
+        }
+        return ordered;
+    }
+
+    public SSHSessionPool getPool() {
+        return pool;
+    }
+
+    @Override
+    public void close() {
+        if (ownsPool) {
+            pool.close();
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.virima.jsch;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per-host circuit breaker for connection attempts.
+ * <p>
+ * After {@code failureThreshold} failed connects in a row the host's circuit is OPEN: calls
+ * fail immediately instead of each waiting out the 30 s connect timeout. When the backoff
+ * expires, exactly one caller is let through as a probe (HALF_OPEN). A probe that connects
+ * closes the circuit (CLOSED) and resets the backoff; a probe that fails opens it again with
+ * double the backoff, up to {@code maxBackoffMillis}.
+ * <p>
+ * Only failures that say something about the host (timeouts, refused, reset...) count;
+ * a wrong password means the host is up.
+ */
+public class HostCircuitBreaker {
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    public static final int DEFAULT_FAILURE_THRESHOLD = 2;
+    public static final long DEFAULT_BASE_BACKOFF_MILLIS = 30_000L;
+    public static final long DEFAULT_MAX_BACKOFF_MILLIS = 30 * 60_000L;
+
+    private final int failureThreshold;
+    private final long baseBackoffMillis;
+    private final long maxBackoffMillis;
+    private final Map<String, Circuit> circuits = new ConcurrentHashMap<>();
+
+    public HostCircuitBreaker() {
+        this(DEFAULT_FAILURE_THRESHOLD, DEFAULT_BASE_BACKOFF_MILLIS, DEFAULT_MAX_BACKOFF_MILLIS);
+    }
+
+    public HostCircuitBreaker(int failureThreshold, long baseBackoffMillis, long maxBackoffMillis) {
+        this.failureThreshold = failureThreshold;
+        this.baseBackoffMillis = baseBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+    }
+
+    /**
+     * Asks whether a connect to the host may go ahead. Every permitted attempt must be
+     * followed by {@link #onSuccess} or {@link #onFailure}.
+     *
+     * @return 0 if the attempt may proceed, otherwise the milliseconds until the circuit may be probed
+     */
+    public long tryAcquire(String host, int port) {
+        Circuit circuit = circuits.get(key(host, port));
+        if (circuit == null) {
+            return 0;
+        }
+        synchronized (circuit) {
+            long now = System.currentTimeMillis();
+            switch (circuit.state) {
+                case CLOSED:
+                    return 0;
+                case OPEN:
+                    if (now >= circuit.openUntil) {
+                        circuit.state = State.HALF_OPEN;
+                        return 0;
+                    }
+                    return circuit.openUntil - now;
+                case HALF_OPEN:
+                default:
+                    // A probe is already in flight; everyone else waits for its verdict
+                    return baseBackoffMillis;
+            }
+        }
+    }
+
+    public void onSuccess(String host, int port) {
+        Circuit circuit = circuits.get(key(host, port));
+        if (circuit == null) {
+            return;
+        }
+        synchronized (circuit) {
+            circuit.state = State.CLOSED;
+            circuit.consecutiveFailures = 0;
+            circuit.opens = 0;
+        }
+    }
+
+    public void onFailure(String host, int port) {
+        Circuit circuit = circuits.computeIfAbsent(key(host, port), k -> new Circuit());
+        synchronized (circuit) {
+            circuit.consecutiveFailures++;
+            if (circuit.state == State.HALF_OPEN || circuit.consecutiveFailures >= failureThreshold) {
+                circuit.opens++;
+                long backoff = Math.min(baseBackoffMillis << Math.min(circuit.opens - 1, 20), maxBackoffMillis);
+                // Jitter so a rack that went down together isn't probed in lockstep
+                backoff += (long) (Math.random() * backoff * 0.1);
+                circuit.state = State.OPEN;
+                circuit.openUntil = System.currentTimeMillis() + backoff;
+            }
+        }
+    }
+
+    public State getState(String host, int port) {
+        Circuit circuit = circuits.get(key(host, port));
+        if (circuit == null) {
+            return State.CLOSED;
+        }
+        synchronized (circuit) {
+            return circuit.state;
+        }
+    }
+
+    public void reset(String host, int port) {
+        circuits.remove(key(host, port));
+    }
+
+    private static String key(String host, int port) {
+        return host + ":" + port;
+    }
+
+    private static class Circuit {
+        State state = State.CLOSED;
+        int consecutiveFailures;
+        int opens;
+        long openUntil;
+    }
+}
@@ -0,0 +1,154 @@
+package com.virima.jsch;
+
+import com.jcraft.jsch.Identity;
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.KeyPair;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of parsed and decrypted private keys, keyed by a hash of the key text and passphrase.
+ * <p>
+ * Keys are parsed straight from memory with {@link KeyPair#load(JSch, byte[], byte[])}, so no key
+ * material is written to disk, and a key used for many hosts is parsed and decrypted only once.
+ */
+public class IdentityCache {
+    private static final String CLASSNAME = "IdentityCache";
+
+    public static final int DEFAULT_MAX_ENTRIES = 256;
+
+    // KeyPair.load only uses the JSch instance for its logger and config lookups
+    private static final JSch PARSER = new JSch();
+
+    private final Map<String, CachedIdentity> cache;
+
+    public IdentityCache() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    public IdentityCache(int maxEntries) {
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedIdentity> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Returns a decrypted identity for the key, parsing it only on the first request.
+     *
+     * @throws JSchException if the key cannot be parsed or the passphrase does not decrypt it
+     */
+    public Identity getIdentity(String privateKey, String passphrase) throws JSchException {
+        // Same normalisation the key files used to get, so PuTTY and OpenSSH keys parse as before
+        String normalized = privateKey.replace("\r\n", "\n").replace("\n", "\r\n");
+        String cacheKey = hash(normalized, passphrase);
+
+        synchronized (cache) {
+            CachedIdentity identity = cache.get(cacheKey);
+            if (identity != null) {
+                return identity;
+            }
+        }
+
+        KeyPair keyPair = KeyPair.load(PARSER, normalized.getBytes(StandardCharsets.UTF_8), null);
+        if (keyPair.isEncrypted()) {
+            if (passphrase == null || passphrase.isEmpty() || !keyPair.decrypt(passphrase)) {
+                keyPair.dispose();
+                throw new JSchException("[" + CLASSNAME + "] Could not decrypt private key with the given passphrase");
+            }
+        }
+        CachedIdentity identity = new CachedIdentity(keyPair, "cached-" + cacheKey.substring(0, 12));
+
+        synchronized (cache) {
+            CachedIdentity existing = cache.putIfAbsent(cacheKey, identity);
+            return existing != null ? existing : identity;
+        }
+    }
+
+    public int size() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    public void clear() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    private static String hash(String privateKey, String passphrase) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(privateKey.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            if (passphrase != null) {
+                digest.update(passphrase.getBytes(StandardCharsets.UTF_8));
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    /**
+     * Identity backed by an already decrypted key pair. It is shared by every session
+     * that uses the key, so {@link #clear()} deliberately leaves the key material alone.
+     */
+    private static class CachedIdentity implements Identity {
+        private final KeyPair keyPair;
+        private final String name;
+
+        CachedIdentity(KeyPair keyPair, String name) {
+            this.keyPair = keyPair;
+            this.name = name;
+        }
+
+        @Override
+        public boolean setPassphrase(byte[] passphrase) throws JSchException {
+            return !keyPair.isEncrypted() || keyPair.decrypt(passphrase);
+        }
+
+        @Override
+        public byte[] getPublicKeyBlob() {
+            return keyPair.getPublicKeyBlob();
+        }
+
+        @Override
+        public byte[] getSignature(byte[] data) {
+            return keyPair.getSignature(data);
+        }
+
+        @Override
+        public byte[] getSignature(byte[] data, String alg) {
+            return keyPair.getSignature(data, alg);
+        }
+
+        @Override
+        public String getAlgName() {
+            return keyPair.getKeyTypeString();
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public boolean isEncrypted() {
+            return keyPair.isEncrypted();
+        }
+
+        @Override
+        public void clear() {
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.virima.jsch;
+
+import com.jcraft.jsch.ChannelShell;
+import com.jcraft.jsch.Session;
+
+import java.io.OutputStream;
+
+/**
+ * A shell channel that is logged in and sitting at a known prompt, together with the JediTerm
+ * state that renders it. Opened by {@link JediTermSshExecutor}; kept between commands by
+ * {@link InteractiveShellPool}.
+ */
+final class InteractiveShell {
+    private final Session session;
+    private final ChannelShell channel;
+    private final OutputStream output;
+    private final JediTermSshExecutor.JediTermProcessor processor;
+    private final Thread processorThread;
+    private final String credentialFingerprint;
+    private final boolean isAdmin;
+    private final long channelOpenMillis;
+    private String prompt;
+    private DeviceProfile profile = DeviceProfile.GENERIC;
+    private boolean reused;
+
+    InteractiveShell(Session session, ChannelShell channel, OutputStream output,
+                     JediTermSshExecutor.JediTermProcessor processor, Thread processorThread,
+                     String password, boolean isAdmin, long channelOpenMillis) {
+        this.session = session;
+        this.credentialFingerprint = SSHTarget.fingerprint(password);
+        this.channel = channel;
+        this.output = output;
+        this.processor = processor;
+        this.processorThread = processorThread;
+        this.isAdmin = isAdmin;
+        this.channelOpenMillis = channelOpenMillis;
+    }
+
+    /**
+     * Shells are interchangeable when they run on the same session, were logged in with the same
+     * password and have the same pty. A shell is bound to its session: it rides on that session's
+     * transport, so handing it to a caller holding another session would run commands outside
+     * the session the caller borrowed, closed or invalidated.
+     */
+    static String keyFor(Session session, String password, boolean isAdmin) {
+        return key(session, SSHTarget.fingerprint(password), isAdmin);
+    }
+
+    private static String key(Session session, String credentialFingerprint, boolean isAdmin) {
+        return session.getUserName() + "@" + session.getHost() + ":" + session.getPort()
+                + "@" + Integer.toHexString(System.identityHashCode(session))
+                + "#" + credentialFingerprint + (isAdmin ? "#admin" : "");
+    }
+
+    String getKey() {
+        return key(session, credentialFingerprint, isAdmin);
+    }
+
+    Session getSession() {
+        return session;
+    }
+
+    ChannelShell getChannel() {
+        return channel;
+    }
+
+    OutputStream getOutput() {
+        return output;
+    }
+
+    JediTermSshExecutor.JediTermProcessor getProcessor() {
+        return processor;
+    }
+
+    boolean isAdmin() {
+        return isAdmin;
+    }
+
+    long getChannelOpenMillis() {
+        return channelOpenMillis;
+    }
+
+    String getPrompt() {
+        return prompt;
+    }
+
+    void setPrompt(String prompt) {
+        this.prompt = prompt;
+    }
+
+    DeviceProfile getProfile() {
+        return profile;
+    }
+
+    void setProfile(DeviceProfile profile) {
+        this.profile = profile;
+    }
+
+    /**
+     * True once the shell has come back from a pool, i.e. login and prompt detection were skipped.
+     */
+    boolean isReused() {
+        return reused;
+    }
+
+    void setReused(boolean reused) {
+        this.reused = reused;
+    }
+
+    /**
+     * Transport-level check: the channel, its session and the reader thread are all still up,
+     * and the session answers a keep-alive.
+     */
+    boolean isAlive() {
+        if (!session.isConnected() || !channel.isConnected() || channel.isClosed() || !processorThread.isAlive()) {
+            return false;
+        }
+        try {
+            session.sendKeepAliveMsg();
+            return session.isConnected();
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Stops the reader and closes the channel. The session stays open; it belongs to the caller.
+     */
+    void close() {
+        // Whatever the last command's pauses were, they go to the timing model before the reader stops
+        processor.recordGaps(null);
+        processor.stop();
+        channel.disconnect();
+    }
+}
@@ -0,0 +1,175 @@
+package com.virima.jsch;
+
+import com.jcraft.jsch.Session;
+import com.virima.utils.AsyncLog;
+import com.virima.utils.ComponentLog;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pool of logged-in shells, keyed by the session they run on, the login password and pty mode.
+ * <p>
+ * Like {@link SSHSessionPool}, one level up: the session pool saves the handshake, this saves the
+ * login dance and prompt discovery, which on network devices is several seconds per command.
+ * Pass it to {@link JediTermSshExecutor#JediTermSshExecutor(InteractiveShellPool)}; the executor
+ * checks a borrowed shell is still at its prompt and resets it otherwise.
+ * <p>
+ * A shell lives on the session it was opened on and only goes back to a caller holding that same
+ * session, so this only pays off when sessions are long-lived too (e.g. borrowed from an
+ * {@link SSHSessionPool}). Shells whose session was closed are dropped by the evictor.
+ */
+public final class InteractiveShellPool implements AutoCloseable {
+    private static final String CLASSNAME = "InteractiveShellPool";
+    private static final ComponentLog LOG = AsyncLog.forComponent(CLASSNAME);
+
+    public static final int DEFAULT_MAX_IDLE_PER_KEY = 2;
+    public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 5 * 60 * 1000L;
+
+    private final int maxIdlePerKey;
+    private final long idleTimeoutMillis;
+    private final Map<String, ConcurrentLinkedDeque<IdleShell>> idle = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService evictor;
+    private volatile boolean closed;
+
+    public InteractiveShellPool() {
+        this(DEFAULT_MAX_IDLE_PER_KEY, DEFAULT_IDLE_TIMEOUT_MILLIS);
+    }
+
+    public InteractiveShellPool(int maxIdlePerKey, long idleTimeoutMillis) {
+        if (maxIdlePerKey < 1) {
+            throw new IllegalArgumentException("maxIdlePerKey must be >= 1");
+        }
+        this.maxIdlePerKey = maxIdlePerKey;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+
+        this.evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "ssh-shell-pool-evictor");
+            t.setDaemon(true);
+            return t;
+        });
+        long sweepInterval = Math.max(1000L, idleTimeoutMillis / 2);
+        this.evictor.scheduleWithFixedDelay(this::evictIdle, sweepInterval, sweepInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Takes an idle shell for the key that runs on the session and passes the transport health
+     * check, or returns null.
+     */
+    InteractiveShell borrow(String key, Session session) {
+        if (closed) {
+            return null;
+        }
+        ConcurrentLinkedDeque<IdleShell> shells = idle.get(key);
+        if (shells == null) {
+            return null;
+        }
+        for (IdleShell candidate : shells) {
+            // The key carries an identity hash, which two sessions can share
+            if (candidate.shell.getSession() != session || !shells.removeFirstOccurrence(candidate)) {
+                continue;
+            }
+            if (candidate.shell.isAlive()) {
+                candidate.shell.setReused(true);
+                return candidate.shell;
+            }
+            LOG.debug(() -> "Dropping dead shell for " + key);
+            closeQuietly(candidate.shell);
+        }
+        return null;
+    }
+
+    /**
+     * Keeps a shell that finished its command cleanly at the prompt.
+     */
+    void release(InteractiveShell shell) {
+        boolean[] kept = {false};
+        if (!closed && shell.isAlive()) {
+            // Under compute, so the evictor can't drop the key between lookup and offer
+            idle.compute(shell.getKey(), (k, shells) -> {
+                if (shells == null) {
+                    shells = new ConcurrentLinkedDeque<>();
+                }
+                if (shells.size() < maxIdlePerKey) {
+                    shells.offerFirst(new IdleShell(shell, System.currentTimeMillis()));
+                    kept[0] = true;
+                }
+                return shells;
+            });
+        }
+        if (!kept[0]) {
+            closeQuietly(shell);
+        }
+    }
+
+    /**
+     * Discards a shell whose state is unknown, e.g. after a timeout or an error mid-command.
+     */
+    void invalidate(InteractiveShell shell) {
+        closeQuietly(shell);
+    }
+
+    /**
+     * Closes shells that have been idle longer than the idle timeout or whose session is gone,
+     * and forgets keys with no shells left; a key per session would otherwise pile up.
+     */
+    void evictIdle() {
+        long cutoff = System.currentTimeMillis() - idleTimeoutMillis;
+        for (String key : idle.keySet()) {
+            ConcurrentLinkedDeque<IdleShell> shells = idle.get(key);
+            if (shells == null) {
+                continue;
+            }
+            for (IdleShell candidate : shells) {
+                boolean expired = candidate.idleSince < cutoff || !candidate.shell.getSession().isConnected();
+                if (expired && shells.removeFirstOccurrence(candidate)) {
+                    closeQuietly(candidate.shell);
+                }
+            }
+            idle.computeIfPresent(key, (k, remaining) -> remaining.isEmpty() ? null : remaining);
+        }
+    }
+
+    public int getIdleCount() {
+        int count = 0;
+        for (ConcurrentLinkedDeque<IdleShell> shells : idle.values()) {
+            count += shells.size();
+        }
+        return count;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        evictor.shutdownNow();
+        for (ConcurrentLinkedDeque<IdleShell> shells : idle.values()) {
+            IdleShell candidate;
+            while ((candidate = shells.pollFirst()) != null) {
+                closeQuietly(candidate.shell);
+            }
+        }
+        idle.clear();
+    }
+
+    private static void closeQuietly(InteractiveShell shell) {
+        try {
+            shell.close();
+        } catch (Exception e) {
+            LOG.warn("Could not close shell", e);
+        }
+    }
+
+    private static class IdleShell {
+        final InteractiveShell shell;
+        final long idleSince;
+
+        IdleShell(InteractiveShell shell, long idleSince) {
+            this.shell = shell;
+            this.idleSince = idleSince;
+        }
+    }
+}
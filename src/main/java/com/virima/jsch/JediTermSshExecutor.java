@@ -2,19 +2,25 @@ package com.virima.jsch;
 
 import com.jcraft.jsch.ChannelShell;
 import com.jcraft.jsch.Session;
-import com.jediterm.terminal.ArrayTerminalDataStream;
+import com.jediterm.terminal.TerminalDataStream;
 import com.jediterm.terminal.emulator.Emulator;
 import com.jediterm.terminal.emulator.JediEmulator;
 import com.jediterm.terminal.model.JediTerminal;
 import com.jediterm.terminal.model.StyleState;
 import com.jediterm.terminal.model.TerminalTextBuffer;
+import com.virima.utils.AsyncLog;
+import com.virima.utils.ComponentLog;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -28,182 +34,465 @@ import java.util.regex.Pattern;
  */
 public class JediTermSshExecutor {
 
-    // Set to true to enable debug output
-    private static final boolean DEBUG = true;
-
-    // Terminal dimensions - like setting your monitor resolution
-    private static final int TERMINAL_WIDTH = 200;
-    private static final int TERMINAL_HEIGHT = 24;
-
-    // Patterns for detecting prompts and pagination
-    // Matches various device prompts:
-    // - Cisco user mode: Switch>, Router>
-    // - Cisco privileged: Switch#, Router#
-    // - Cisco config: Switch(config)#, Switch(config-if)#
-    // - Linux: user@host$, root@host#
-    // - With stack/port: Switch:1>, Switch:2#
-    // - Bare prompts: >, #, $
-    private static final Pattern PROMPT_PATTERN = Pattern.compile("[\\w\\-\\.@:]*(?:\\([\\w\\-]+\\))?[#>$%]\\s*$");
-    private static final Pattern MORE_PATTERN = Pattern.compile("(?i)(--\\s*more\\s*--|<---\\s*more\\s*--->|More:.*<space>.*Quit:.*q)");
+    private static final String CLASSNAME = "JediTermSshExecutor";
+    // Debug output is off unless -Dvirima.log.level.JediTermSshExecutor=DEBUG (or set at runtime)
+    private static final ComponentLog LOG = AsyncLog.forComponent(CLASSNAME);
+
+    private static final int READ_BUFFER_SIZE = 8192;
+    // Raw text kept per shell for prompt matching and debugging; older text is only on the screen
+    private static final int RAW_HISTORY_CHARS = 64 * 1024;
+    // Lines kept in plain-text mode until a streaming listener takes them, like JediTerm's history
+    private static final int PLAIN_HISTORY_LINES = 5000;
+    // Login matching looks at new raw text plus this much before it, so a match split across checks is still found
+    private static final int LOGIN_MATCH_OVERLAP = 256;
+
+    // Patterns for the login dance; prompt and pager patterns come from the device profile
     private static final Pattern LOGIN_PROMPT = Pattern.compile("(?i)(user\\s*name|username|login|user)\\s*:\\s*$");
     private static final Pattern PASSWORD_PROMPT = Pattern.compile("(?i)password\\s*:\\s*$");
     private static final Pattern AUTH_FAILURE = Pattern.compile("(?i)(authentication failed|access denied|login incorrect)");
 
+    // Waits are driven by data arriving; these only bound them. A burst of output (banner,
+    // prompt, echo) counts as complete once the channel has been quiet for QUIET_MILLIS.
+    private static final long QUIET_MILLIS = 150;
+    private static final long PROMPT_TIMEOUT_MILLIS = 2000;
+    private static final long EXIT_TIMEOUT_MILLIS = 2000;
+
+    // Optional; without it every command gets a fresh shell that is closed afterwards
+    private final InteractiveShellPool shellPool;
+    private final boolean markerCompletion;
+    private final DeviceProfileRegistry profiles;
+    private final CompletionTimingModel timing;
+
+    public JediTermSshExecutor() {
+        this(null);
+    }
+
+    /**
+     * Executor that keeps logged-in shells in the pool between commands, so later commands on the
+     * same host skip login and prompt detection.
+     */
+    public JediTermSshExecutor(InteractiveShellPool shellPool) {
+        this(shellPool, false);
+    }
+
+    /**
+     * @param markerCompletion the hosts run a POSIX shell: each command is followed by a printf of
+     *                         a unique marker and {@code $?}, so the command is complete as soon as
+     *                         the marker shows and its exit code is real. Don't use it for network
+     *                         device CLIs, they would reject the printf.
+     */
+    public JediTermSshExecutor(InteractiveShellPool shellPool, boolean markerCompletion) {
+        this(shellPool, markerCompletion, DeviceProfileRegistry.getDefault());
+    }
+
+    /**
+     * @param profiles where device profiles are detected and cached per host
+     */
+    public JediTermSshExecutor(InteractiveShellPool shellPool, boolean markerCompletion, DeviceProfileRegistry profiles) {
+        this(shellPool, markerCompletion, profiles, null);
+    }
+
+    /**
+     * @param timing where output pauses are learned per host and command, e.g. one
+     *               {@code new CompletionTimingModel(CompletionTimingModel.defaultFile())} shared by
+     *               all executors; null to always use the fixed completion thresholds
+     */
+    public JediTermSshExecutor(InteractiveShellPool shellPool, boolean markerCompletion, DeviceProfileRegistry profiles,
+                               CompletionTimingModel timing) {
+        this.shellPool = shellPool;
+        this.markerCompletion = markerCompletion;
+        this.profiles = profiles;
+        this.timing = timing;
+    }
+
     /**
      * Executes a command over SSH using JediTerm for terminal emulation.
      */
     public CommandResult executeCommand(Session session, String password, String command, boolean isAdmin) {
-        ChannelShell channel = null;
-        String outputString = "";
-        int exitCode = -1;
+        return executeCommand(session, password, command, isAdmin, null);
+    }
+
+    /**
+     * Executes a command and, when a listener is given, streams its output line by line as the
+     * lines scroll off the emulated screen; the rest of the screen follows once the command has
+     * finished and the result's output is left empty.
+     * <p>
+     * With a shell pool the shell is kept open afterwards instead of being exited, so there is no
+     * shell exit status and the exit code is -1, unless marker completion supplies the command's own.
+     */
+    public CommandResult executeCommand(Session session, String password, String command, boolean isAdmin, OutputListener listener) {
         String host = session.getHost();
 
-        debug("═══════════════════════════════════════════════════════════════");
-        debug("STARTING executeCommand for host: " + host);
-        debug("Command: '" + command + "'");
-        debug("isAdmin: " + isAdmin);
-        debug("═══════════════════════════════════════════════════════════════");
+        debug(() -> "═══════════════════════════════════════════════════════════════");
+        debug(() -> "STARTING executeCommand for host: " + host);
+        debug(() -> "Command: '" + command + "'");
+        debug(() -> "isAdmin: " + isAdmin);
+        debug(() -> "═══════════════════════════════════════════════════════════════");
 
-        try {
-            // === Step 1: Set up the SSH channel ===
-            debug("[STEP 1] Opening shell channel...");
-            channel = (ChannelShell) session.openChannel("shell");
+        InteractiveShell shell = borrowShell(session, password, isAdmin);
+        if (shell == null) {
+            try {
+                shell = openShell(session, password, isAdmin);
+            } catch (Exception e) {
+                debug(() -> "ERROR: " + e.getClass().getSimpleName() + " - " + e.getMessage());
+                LOG.error("Could not open shell on " + host, e);
+                return withTimings(new CommandResult(false, -1, ""), session, -1);
+            }
+        }
 
-            if (isAdmin) {
-                channel.setPtyType("vt100", TERMINAL_WIDTH, TERMINAL_HEIGHT, 640, 480);
-                debug("[STEP 1] PTY type: vt100 (admin mode)");
+        CommandResult result = null;
+        try {
+            result = runCommand(shell, command, listener);
+            return result;
+        } finally {
+            boolean clean = result != null && result.getResult();
+            if (shellPool != null && clean) {
+                shellPool.release(shell);
             } else {
-                channel.setPtyType("dumb", TERMINAL_WIDTH, TERMINAL_HEIGHT, 640, 480);
-                debug("[STEP 1] PTY type: dumb (non-admin mode)");
+                int exitCode = closeShell(shell, clean);
+                // A marker exit code is the command's own; the shell's is only a stand-in
+                if (clean && result.getExitCode() < 0) {
+                    result.setExitCode(exitCode);
+                }
+            }
+        }
+    }
+
+    private static CommandResult withTimings(CommandResult result, Session session, long channelOpenMillis) {
+        result.setConnectionTimings(ConnectionTimings.of(session));
+        result.setChannelOpenMillis(channelOpenMillis);
+        return result;
+    }
+
+    // ==================== SHELL LIFECYCLE ====================
+
+    /**
+     * Takes a pooled shell opened on this session with this password and makes sure it is sitting at its prompt;
+     * a shell that isn't is reset once and discarded if that doesn't help.
+     */
+    private InteractiveShell borrowShell(Session session, String password, boolean isAdmin) {
+        if (shellPool == null) {
+            return null;
+        }
+        InteractiveShell shell;
+        while ((shell = shellPool.borrow(InteractiveShell.keyFor(session, password, isAdmin), session)) != null) {
+            if (isAtPrompt(shell) || resetShell(shell)) {
+                InteractiveShell reused = shell;
+                debug(() -> "Reusing pooled shell, prompt: '" + reused.getPrompt() + "'");
+                return shell;
             }
+            LOG.info(() -> "Discarding pooled shell on " + session.getHost() + ": not at its prompt after reset");
+            shellPool.invalidate(shell);
+        }
+        return null;
+    }
+
+    /**
+     * Opens a shell channel, logs in, sets the device up and detects the prompt (steps 1-7).
+     */
+    private InteractiveShell openShell(Session session, String password, boolean isAdmin) throws Exception {
+        String host = session.getHost();
+
+        // === Step 1: Set up the SSH channel ===
+        debug(() -> "[STEP 1] Opening shell channel...");
+        ChannelShell channel = (ChannelShell) session.openChannel("shell");
+
+        try {
+            // The pty has to be chosen before the device says anything, so this is the cached
+            // profile for the host, or generic the first time
+            DeviceProfile initialProfile = profiles.forHost(host, session.getPort());
+            String ptyType = initialProfile.getPtyType(isAdmin);
+            channel.setPtyType(ptyType, initialProfile.getWidth(), initialProfile.getHeight(), 640, 480);
+            debug(() -> "[STEP 1] PTY type: " + ptyType + " (" + (isAdmin ? "admin" : "non-admin")
+                    + " mode, " + initialProfile + " profile)");
             channel.setPty(true);
 
             // === Step 2: Get I/O streams BEFORE connect() ===
-            debug("[STEP 2] Getting I/O streams...");
+            debug(() -> "[STEP 2] Getting I/O streams...");
             InputStream inputStream = channel.getInputStream();
             OutputStream outputStream = channel.getOutputStream();
 
             // === Step 3: Now connect ===
-            debug("[STEP 3] Connecting channel (timeout: 15s)...");
+            debug(() -> "[STEP 3] Connecting channel (timeout: 15s)...");
+            long channelOpenStart = System.currentTimeMillis();
             channel.connect(15000);
-            debug("[STEP 3] Channel connected successfully");
+            long channelOpenMillis = System.currentTimeMillis() - channelOpenStart;
+            debug(() -> "[STEP 3] Channel connected successfully");
 
             // === Step 4: Create JediTerm components ===
-            debug("[STEP 4] Creating JediTerm components...");
+            debug(() -> "[STEP 4] Creating JediTerm components...");
             StyleState styleState = new StyleState();
-            TerminalTextBuffer textBuffer = new TerminalTextBuffer(TERMINAL_WIDTH, TERMINAL_HEIGHT, styleState);
+            TerminalTextBuffer textBuffer = new TerminalTextBuffer(initialProfile.getWidth(), initialProfile.getHeight(), styleState);
             BackBufferDisplay display = new BackBufferDisplay(textBuffer);
             JediTerminal terminal = new JediTerminal(display, textBuffer, styleState);
 
             // === Step 5: Set up JediTerm processor ===
-            debug("[STEP 5] Starting JediTerm processor...");
-            JediTermProcessor processor = new JediTermProcessor(inputStream, terminal, textBuffer);
-
-            try(ExecutorService executor = Executors.newSingleThreadExecutor()){
-                executor.submit(processor);
-                debug("[STEP 5] Processor started");
-
+            // A virtual thread rather than an executor: a pooled shell's reader lives as long as the shell
+            debug(() -> "[STEP 5] Starting JediTerm processor...");
+            boolean plainText = initialProfile.isPlainText(isAdmin);
+            debug(() -> "[STEP 5] Rendering: " + (plainText ? "plain text, JediTerm on cursor addressing" : "JediTerm"));
+            JediTermProcessor processor = new JediTermProcessor(inputStream, terminal, textBuffer, plainText);
+            processor.setMorePattern(initialProfile.getMorePattern());
+            Thread processorThread = Thread.ofVirtual().name("jediterm-" + host).start(processor);
+            InteractiveShell shell = new InteractiveShell(session, channel, outputStream, processor, processorThread,
+                    password, isAdmin, channelOpenMillis);
+            debug(() -> "[STEP 5] Processor started");
 
+            try {
                 // === Step 6: Handle login sequence ===
-                debug("[STEP 6] Handling login sequence...");
-                handleLogin(processor, outputStream, session.getUserName(), password);
-                debug("[STEP 6] Login complete");
+                debug(() -> "[STEP 6] Handling login sequence...");
+                handleLogin(processor, outputStream, initialProfile.getPromptPattern(), session.getUserName(), password);
+                debug(() -> "[STEP 6] Login complete");
+
+                // Banner and first prompt tell what kind of device this is
+                DeviceProfile profile = initialProfile;
+                if (profiles.getProfile(host, session.getPort()) == null) {
+                    profile = profiles.detect(host, session.getPort(), processor.getRawContent(), processor.getScreenContent());
+                    processor.setMorePattern(profile.getMorePattern());
+                }
+                shell.setProfile(profile);
+                debug(() -> "[STEP 6] Device profile: " + shell.getProfile());
+                runSetupCommands(processor, outputStream, profile);
 
                 // === Step 7: Detect the prompt ===
-                debug("[STEP 7] Detecting prompt...");
-                String detectedPrompt = detectPrompt(processor, outputStream);
-                debug("[STEP 7] Detected prompt: '" + detectedPrompt + "' (length=" + detectedPrompt.length() + ")");
-
-                // === Step 8: Execute the command ===
-                debug("[STEP 8] Preparing to execute command...");
-                debug("[STEP 8] Clearing raw buffer...");
-                processor.clearRawBuffer();
-                processor.cleartextBuffer();
-
-                debug("[STEP 8] Waiting 300ms for buffer stabilization...");
-                sleep(300);
-
-                debug("[STEP 8] Sending command: '" + command + "'");
-                sendLine(outputStream, command);
-
-                debug("[STEP 8] Waiting 500ms for device to process...");
-                sleep(700);
-
-                // === Step 9: Wait for command completion ===
-                debug("[STEP 9] Waiting for command completion...");
-                outputString = waitForCommandCompletion(processor, outputStream, detectedPrompt);
-                debug("[STEP 9] Raw output received, length: " + outputString.length());
-
-                // === Step 10: Clean up the output ===
-                debug("[STEP 10] Cleaning output...");
-                debug("[STEP 10] RAW OUTPUT BEFORE CLEAN:");
-                debug("─────────────────────────────────────");
-                debug(outputString);
-                debug("─────────────────────────────────────");
-
-                outputString = cleanOutput(outputString, command, detectedPrompt);
-
-                debug("[STEP 10] CLEANED OUTPUT:");
-                debug("─────────────────────────────────────");
-                debug(outputString);
-                debug("─────────────────────────────────────");
-                debug("[STEP 10] Cleaned output length: " + outputString.length());
-
-                if (DEBUG) {
-                    System.out.println("=== Command Output ===");
-                    System.out.println(outputString);
-                    System.out.println("======================");
+                debug(() -> "[STEP 7] Detecting prompt...");
+                String detectedPrompt;
+                try {
+                    detectedPrompt = detectPrompt(processor, outputStream, profile.getPromptPattern());
+                } catch (IOException e) {
+                    if (profile == DeviceProfile.GENERIC) {
+                        throw e;
+                    }
+                    // The cached or detected profile is wrong for this host; detect again next time
+                    DeviceProfile wrong = profile;
+                    LOG.info(() -> "No " + wrong + " prompt on " + host + ", falling back to generic");
+                    profiles.forget(host, session.getPort());
+                    shell.setProfile(DeviceProfile.GENERIC);
+                    processor.setMorePattern(DeviceProfile.GENERIC.getMorePattern());
+                    detectedPrompt = detectPrompt(processor, outputStream, DeviceProfile.GENERIC.getPromptPattern());
                 }
+                shell.setPrompt(detectedPrompt);
+                debug(() -> "[STEP 7] Detected prompt: '" + shell.getPrompt() + "' (length=" + shell.getPrompt().length() + ")");
+            } catch (Exception e) {
+                shell.close();
+                throw e;
+            }
+            return shell;
+        } catch (Exception e) {
+            channel.disconnect();
+            throw e;
+        }
+    }
 
-                // === Step 11: Send exit command ===
-                debug("[STEP 11] Sending exit command...");
-                sendLine(outputStream, "exit");
-                Thread.sleep(500);
+    /**
+     * Runs one command on a shell that is at its prompt (steps 8-10). The shell is left at the
+     * prompt; the result is unsuccessful if anything went wrong on the way.
+     */
+    private CommandResult runCommand(InteractiveShell shell, String command, OutputListener listener) {
+        JediTermProcessor processor = shell.getProcessor();
+        OutputStream outputStream = shell.getOutput();
+        String detectedPrompt = shell.getPrompt();
+        String outputString = "";
+        int exitCode = -1;
+        // Without a listener of our own, lines that scroll off the screen are collected here
+        ScrollbackCollector collector = listener == null ? new ScrollbackCollector(SSHExecutor.getSpillThresholdBytes()) : null;
 
-                exitCode = channel.getExitStatus();
-                debug("[STEP 11] Exit code: " + exitCode);
+        // With marker completion a printf of the marker is typed on a line of its own after the command
+        String token = markerCompletion ? ExecBatch.newToken() : null;
+        String markerLine = token != null ? markerLine(token) : null;
 
-            } finally {
-                debug("Cleaning up: stopping processor and executor...");
-                processor.stop();
+        try {
+            // === Step 8: Execute the command ===
+            debug(() -> "[STEP 8] Preparing to execute command...");
+            debug(() -> "[STEP 8] Clearing raw buffer...");
+            processor.clearRawBuffer();
+            processor.cleartextBuffer();
+            processor.startStreaming(listener != null ? listener : collector, command, markerLine, detectedPrompt);
+            String host = shell.getSession().getHost();
+
+            debug(() -> "[STEP 8] Waiting for the buffer to settle...");
+            processor.awaitQuiet(QUIET_MILLIS, 300);
+
+            debug(() -> "[STEP 8] Sending command: '" + command + "'");
+            long version = processor.getDataVersion();
+            // The previous command's late output has had its chance; this one's pauses start now
+            processor.recordGaps(timing != null ? timing.newGaps(host, command) : null);
+            // One write, so the shell has both lines before the command can read from the terminal
+            sendLine(outputStream, markerLine != null ? command + "\n" + markerLine : command);
+
+            debug(() -> "[STEP 8] Waiting for the device to echo...");
+            processor.awaitData(version, 700);
+
+            // === Step 9: Wait for command completion ===
+            debug(() -> "[STEP 9] Waiting for command completion...");
+            String rawOutput;
+            if (token != null) {
+                Pattern marker = Pattern.compile("(?m)^" + Pattern.quote(token) + " (\\d+)\\s*$");
+                String screenContent = waitForMarker(processor, outputStream, marker, shell.getProfile().getMorePattern());
+                Matcher matcher = marker.matcher(screenContent);
+                matcher.find();
+                exitCode = Integer.parseInt(matcher.group(1));
+                rawOutput = withoutEcho(screenContent.substring(0, matcher.start()), markerLine);
+            } else {
+                CompletionTimingModel.Thresholds thresholds = timing != null
+                        ? timing.thresholds(host, command) : CompletionTimingModel.Thresholds.DEFAULT;
+                rawOutput = waitForCommandCompletion(processor, outputStream, detectedPrompt, shell.getProfile().getMorePattern(), thresholds);
+            }
+            // Output that still comes shortly after means the pause was not the end after all
+            processor.closeGapsAfter(CompletionTimingModel.LATE_OUTPUT_MILLIS);
+            outputString = rawOutput;
+            debug(() -> "[STEP 9] Raw output received, length: " + rawOutput.length());
+
+            // === Step 10: Clean up the output ===
+            debug(() -> "[STEP 10] Cleaning output...");
+            debug(() -> "[STEP 10] RAW OUTPUT BEFORE CLEAN:");
+            debug(() -> "─────────────────────────────────────");
+            debug(() -> rawOutput);
+            debug(() -> "─────────────────────────────────────");
+
+            // Lines that scrolled away were delivered already; the screen is what's left
+            processor.stopStreaming();
+            String cleanedOutput = cleanOutput(rawOutput, command, detectedPrompt, processor.isEchoSeen());
+            outputString = cleanedOutput;
+            if (listener != null) {
+                if (!cleanedOutput.isEmpty()) {
+                    listener.onOutput(cleanedOutput + "\n");
+                }
+                outputString = "";
+            } else if (!cleanedOutput.isEmpty()) {
+                collector.add(cleanedOutput);
             }
 
+            debug(() -> "[STEP 10] CLEANED OUTPUT:");
+            debug(() -> "─────────────────────────────────────");
+            debug(() -> cleanedOutput);
+            debug(() -> "─────────────────────────────────────");
+            debug(() -> "[STEP 10] Cleaned output length: " + cleanedOutput.length());
         } catch (Exception e) {
-            debug("ERROR: " + e.getClass().getSimpleName() + " - " + e.getMessage());
-            e.printStackTrace();
-            return new CommandResult(false, exitCode, outputString);
-        } finally {
-            if (channel != null) {
-                debug("Disconnecting channel...");
-                channel.disconnect();
+            debug(() -> "ERROR: " + e.getClass().getSimpleName() + " - " + e.getMessage());
+            LOG.error("Command failed on " + shell.getSession().getHost(), e);
+            if (collector != null) {
+                closeQuietly(collector);
             }
+            return withTimings(new CommandResult(false, -1, outputString), shell.getSession(), shell.getChannelOpenMillis());
         }
 
-        debug("═══════════════════════════════════════════════════════════════");
-        debug("COMPLETED executeCommand - Output length: " + outputString.length());
-        debug("═══════════════════════════════════════════════════════════════");
+        // A reused shell had no channel open to pay for
+        CommandResult result = withTimings(new CommandResult(true, exitCode, outputString), shell.getSession(),
+                shell.isReused() ? 0 : shell.getChannelOpenMillis());
+        if (collector != null) {
+            try {
+                result.setOutputBuffer(collector.finish());
+            } catch (IOException e) {
+                LOG.error("Could not collect output on " + shell.getSession().getHost(), e);
+                result.setResult(false);
+            }
+        }
 
-        return new CommandResult(true, exitCode, outputString);
+        debug(() -> "═══════════════════════════════════════════════════════════════");
+        debug(() -> "COMPLETED executeCommand - Output length: " + result.getOutputSize());
+        debug(() -> "═══════════════════════════════════════════════════════════════");
+        return result;
+    }
+
+    private static void closeQuietly(ScrollbackCollector collector) {
+        try {
+            collector.finish();
+        } catch (IOException e) {
+            LOG.warn("Could not release collected output: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Sends exit on a cleanly finished shell (step 11), then closes it.
+     *
+     * @return the shell's exit status, -1 if there is none
+     */
+    private int closeShell(InteractiveShell shell, boolean sendExit) {
+        int exitCode = -1;
+        try {
+            if (sendExit) {
+                // === Step 11: Send exit command ===
+                if (timing != null && !markerCompletion) {
+                    // Without a pool there is no next command to catch late output; listen briefly
+                    JediTermProcessor processor = shell.getProcessor();
+                    processor.awaitData(processor.getDataVersion(), CompletionTimingModel.LATE_OUTPUT_PROBE_MILLIS);
+                }
+                debug(() -> "[STEP 11] Sending exit command...");
+                shell.getProcessor().recordGaps(null);
+                sendLine(shell.getOutput(), "exit");
+                // The exit status arrives just before the channel closes
+                shell.getProcessor().awaitEnd(EXIT_TIMEOUT_MILLIS);
+
+                exitCode = shell.getChannel().getExitStatus();
+                int exitStatus = exitCode;
+                debug(() -> "[STEP 11] Exit code: " + exitStatus);
+            }
+        } catch (Exception e) {
+            debug(() -> "Could not exit shell cleanly: " + e.getMessage());
+        } finally {
+            debug(() -> "Cleaning up: stopping processor and disconnecting channel...");
+            shell.close();
+        }
+        return exitCode;
+    }
+
+    /**
+     * True if the last non-empty screen line is the shell's prompt.
+     */
+    private boolean isAtPrompt(InteractiveShell shell) {
+        String[] lines = shell.getProcessor().getScreenContent().split("\\r?\\n");
+        for (int i = lines.length - 1; i >= 0; i--) {
+            String line = lines[i].trim();
+            if (!line.isEmpty()) {
+                return line.equals(shell.getPrompt());
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Tries to bring a confused shell back: interrupt whatever runs, clear the screen and look for
+     * the prompt again. Only a prompt equal to the original counts, so a shell that dropped into
+     * another mode (e.g. config mode on a switch) is not reused.
+     */
+    private boolean resetShell(InteractiveShell shell) {
+        try {
+            debug(() -> "Resetting pooled shell, expected prompt: '" + shell.getPrompt() + "'");
+            OutputStream output = shell.getOutput();
+            output.write(3);  // Ctrl-C
+            output.flush();
+            shell.getProcessor().cleartextBuffer();
+            return detectPrompt(shell.getProcessor(), output, shell.getProfile().getPromptPattern()).equals(shell.getPrompt());
+        } catch (IOException e) {
+            return false;
+        }
     }
 
     // ==================== LOGIN HANDLING ====================
 
-    private void handleLogin(JediTermProcessor processor, OutputStream output, String username, String password) throws IOException {
+    private void handleLogin(JediTermProcessor processor, OutputStream output, Pattern promptPattern,
+                             String username, String password) throws IOException {
         long timeout = 10000;
         long startTime = System.currentTimeMillis();
 
-        // Wait for initial data to arrive and be processed
-        sleep(1000);
+        // Let the first burst (banner, login prompt) finish before matching on it
+        processor.awaitQuiet(QUIET_MILLIS, 1000);
 
+        long checkedUpTo = 0;
         while (System.currentTimeMillis() - startTime < timeout) {
+            long version = processor.getDataVersion();
             String screenContent = processor.getScreenContent();
-            String rawContent = processor.getRawContent();
+            long rawPosition = processor.getRawPosition();
+            String rawContent = processor.getRawSince(Math.max(0, checkedUpTo - LOGIN_MATCH_OVERLAP));
+            checkedUpTo = rawPosition;
 
             // Debug: print what we're seeing
-            debug("Screen content: '" + screenContent.replace("\n", "\\n") + "'");
-            debug("Raw content: '" + rawContent.replace("\n", "\\n").replace("\r", "\\r") + "'");
+            debug(() -> "Screen content: '" + screenContent.replace("\n", "\\n") + "'");
+            debug(() -> "Raw content: '" + rawContent.replace("\n", "\\n").replace("\r", "\\r") + "'");
 
-            // Check both screen and raw content for prompts
+            // Check both screen and the new raw content for prompts; the prompt patterns are
+            // anchored at the end, so the tail of the raw content is all they need
             String contentToCheck = screenContent + " " + rawContent;
 
             // Check for auth failure
@@ -212,30 +501,54 @@ public class JediTermSshExecutor {
             }
 
             // Check for device prompt (already logged in)
-            if (PROMPT_PATTERN.matcher(contentToCheck).find()) {
-                debug("Found device prompt, login complete");
+            if (promptPattern.matcher(contentToCheck).find()) {
+                debug(() -> "Found device prompt, login complete");
                 return;
             }
 
             // Check for username prompt
             if (LOGIN_PROMPT.matcher(contentToCheck).find()) {
-                debug("Found login prompt, sending username: " + username);
+                debug(() -> "Found login prompt, sending username: " + username);
                 sendLine(output, username);
-                sleep(1000);
+                awaitResponse(processor, version, startTime + timeout);
                 continue;
             }
 
             // Check for password prompt
             if (PASSWORD_PROMPT.matcher(contentToCheck).find()) {
-                debug("Found password prompt, sending password");
+                debug(() -> "Found password prompt, sending password");
                 sendLine(output, password);
-                sleep(1000);
+                awaitResponse(processor, version, startTime + timeout);
                 continue;
             }
 
-            sleep(200);
+            // Nothing to act on yet; look again once the device sends more
+            awaitResponse(processor, version, startTime + timeout);
+        }
+        debug(() -> "[DEBUG] Login handling timed out");
+    }
+
+    /**
+     * Waits for data newer than {@code version} and then for the rest of its burst, so a prompt
+     * is only matched once it has arrived in full.
+     */
+    private void awaitResponse(JediTermProcessor processor, long version, long deadline) {
+        long remaining = deadline - System.currentTimeMillis();
+        if (processor.awaitData(version, remaining) != version) {
+            processor.awaitQuiet(QUIET_MILLIS, Math.max(0, deadline - System.currentTimeMillis()));
+        }
+    }
+
+    /**
+     * Runs the profile's setup commands, e.g. to turn paging off, waiting for each one's answer.
+     */
+    private void runSetupCommands(JediTermProcessor processor, OutputStream output, DeviceProfile profile) throws IOException {
+        for (String command : profile.getSetupCommands()) {
+            debug(() -> "[STEP 6] Setup command: '" + command + "'");
+            long version = processor.getDataVersion();
+            sendLine(output, command);
+            awaitResponse(processor, version, System.currentTimeMillis() + PROMPT_TIMEOUT_MILLIS);
         }
-        debug("[DEBUG] Login handling timed out");
     }
 
     // ==================== PROMPT DETECTION ====================
@@ -243,27 +556,43 @@ public class JediTermSshExecutor {
     /**
      * Detects the shell prompt - like tapping a sleeping screen to see what appears.
      */
-    private String detectPrompt(JediTermProcessor processor, OutputStream output) throws IOException {
+    private String detectPrompt(JediTermProcessor processor, OutputStream output, Pattern promptPattern) throws IOException {
         // Wait for any initial output to settle
-        sleep(1000);
+        processor.awaitQuiet(QUIET_MILLIS, 1000);
 
         // Send empty line to get a fresh prompt
+        long deadline = System.currentTimeMillis() + PROMPT_TIMEOUT_MILLIS;
+        long version = processor.getDataVersion();
         sendLine(output, "");
-        sleep(1000);
 
-        // Get the current screen content and find the prompt
-        String screenContent = processor.getScreenContent();
+        // Look at the screen each time a burst of output has arrived, until a prompt shows up
+        while (true) {
+            awaitResponse(processor, version, deadline);
+            version = processor.getDataVersion();
+            String prompt = findPrompt(processor.getScreenContent(), promptPattern);
+            if (prompt != null) {
+                return prompt;
+            }
+            if (System.currentTimeMillis() >= deadline) {
+                throw new IOException("Could not detect device prompt");
+            }
+        }
+    }
+
+    /**
+     * The last screen line that looks like a prompt, or null.
+     */
+    private static String findPrompt(String screenContent, Pattern promptPattern) {
         String[] lines = screenContent.split("\\r?\\n");
 
         // Search from bottom up for a line matching prompt pattern
         for (int i = lines.length - 1; i >= 0; i--) {
             String line = lines[i].trim();
-            if (!line.isEmpty() && PROMPT_PATTERN.matcher(line).find()) {
+            if (!line.isEmpty() && promptPattern.matcher(line).find()) {
                 return line;
             }
         }
-
-        throw new IOException("Could not detect device prompt");
+        return null;
     }
 
     // ==================== COMMAND EXECUTION ====================
@@ -287,17 +616,21 @@ public class JediTermSshExecutor {
      * - Raw data stable > 3s         : +1 point (bonus for long stability)
      *
      * Exit when score >= 5 (out of max 7)
+     *
+     * The times above are the defaults; once the host's pauses have been learned, the
+     * {@link CompletionTimingModel} replaces them.
      */
-    private String waitForCommandCompletion(JediTermProcessor processor, OutputStream output, String expectedPrompt) throws IOException {
+    private String waitForCommandCompletion(JediTermProcessor processor, OutputStream output, String expectedPrompt,
+                                            Pattern morePattern, CompletionTimingModel.Thresholds thresholds) throws IOException {
         // Timing configuration
         long timeout = 60000;            // 60 second total timeout
-        long minimumWaitTime = 1500;     // Minimum time before considering complete
-        long rawStableThreshold = 1500;  // Raw data stable threshold for +2 points
-        long rawStableBonusThreshold = 3000; // Bonus point if stable this long
-        long checkInterval = 400;        // Check every 400ms
+        long minimumWaitTime = thresholds.getMinimumWait();               // Minimum time before considering complete
+        long rawStableThreshold = thresholds.getRawStable();              // Raw data stable threshold for +2 points
+        long rawStableBonusThreshold = thresholds.getRawStableBonus();    // Bonus point if stable this long
+        long checkInterval = thresholds.getCheckInterval();               // Check on new data, at least this often
 
         // Score configuration
-        int requiredScore = 5;           // Need this score to exit
+        int requiredScore = thresholds.getRequiredScore(); // Need this score to exit
         int screenStableChecksNeeded = 3; // Screen stable checks for +2 points
 
         long startTime = System.currentTimeMillis();
@@ -305,40 +638,32 @@ public class JediTermSshExecutor {
 
         String lastScreenContent = "";
         int stableScreenCount = 0;
-        int lastRawLength = 0;
+        long lastRawLength = 0;
+        long version = processor.getDataVersion();
 
-        debug("Waiting for command completion (weighted-signals), requiredScore=" + requiredScore);
+        debug(() -> "Waiting for command completion (weighted-signals), " + thresholds);
 
         while (System.currentTimeMillis() - startTime < timeout) {
-            String rawContent = processor.getRawContent();
+            long rawLength = processor.getRawLength();
             String screenContent = processor.getScreenContent();
             long elapsed = System.currentTimeMillis() - startTime;
             long timeSinceLastData = System.currentTimeMillis() - lastDataChangeTime;
 
-            // Track raw data changes
-            if (rawContent.length() != lastRawLength) {
+            // Track raw data changes. A streaming listener that is still busy counts as new data:
+            // the device is only quiet because we stopped reading.
+            if (rawLength != lastRawLength || processor.isDelivering()) {
                 lastDataChangeTime = System.currentTimeMillis();
                 timeSinceLastData = 0;
-                lastRawLength = rawContent.length();
-                debug("Raw data received, length: " + lastRawLength);
+                lastRawLength = rawLength;
+                debug(() -> "Raw data received, length: " + rawLength);
             }
 
             // Check for "more" prompt - need to send space to continue pagination
             // IMPORTANT: Only check screenContent, NOT rawContent!
             // rawContent accumulates ALL data and never forgets old "-- MORE --" prompts,
             // which would cause infinite matching. screenContent shows current display only.
-            Matcher screenMoreMatcher = MORE_PATTERN.matcher(screenContent);
-            if (screenMoreMatcher.find()) {
-                debug("MORE matched in SCREEN content: '" + screenMoreMatcher.group() + "'");
-                // Show context around the match
-                int start = Math.max(0, screenMoreMatcher.start() - 30);
-                int end = Math.min(screenContent.length(), screenMoreMatcher.end() + 30);
-                debug("MORE context in screen: '..." + screenContent.substring(start, end).replace("\n", "\\n").replace("\r", "\\r") + "...'");
-                debug("Found 'more' prompt, sending space");
-                output.write(' ');
-                output.flush();
+            if (answerPager(processor, output, screenContent, morePattern)) {
                 stableScreenCount = 0;
-                sleep(500);  // Wait longer to let the screen update
                 continue;
             }
 
@@ -351,57 +676,127 @@ public class JediTermSshExecutor {
             }
 
             // Calculate weighted score
-            int score = 0;
-            StringBuilder scoreDebug = new StringBuilder();
-
-            // Signal 1: Minimum time elapsed (+1)
-            if (elapsed >= minimumWaitTime) {
-                score += 1;
-                scoreDebug.append("time(+1) ");
-            }
-
-            // Signal 2: Has content (+1)
-            if (lastRawLength > 0) {
-                score += 1;
-                scoreDebug.append("content(+1) ");
+            boolean timeSignal = elapsed >= minimumWaitTime;                     // Signal 1: Minimum time elapsed (+1)
+            boolean contentSignal = lastRawLength > 0;                           // Signal 2: Has content (+1)
+            boolean rawStableSignal = timeSinceLastData >= rawStableThreshold;   // Signal 3: Raw data stable > threshold (+2)
+            boolean screenStableSignal = stableScreenCount >= screenStableChecksNeeded; // Signal 4: Screen stable for N checks (+2)
+            boolean rawStableBonusSignal = timeSinceLastData >= rawStableBonusThreshold; // Signal 5: Raw data stable for longer period - bonus (+1)
+
+            int score = (timeSignal ? 1 : 0)
+                    + (contentSignal ? 1 : 0)
+                    + (rawStableSignal ? 2 : 0)
+                    + (screenStableSignal ? 2 : 0)
+                    + (rawStableBonusSignal ? 1 : 0);
+
+            if (LOG.isDebugEnabled()) {
+                String signals = ((timeSignal ? "time(+1) " : "")
+                        + (contentSignal ? "content(+1) " : "")
+                        + (rawStableSignal ? "rawStable(+2) " : "")
+                        + (screenStableSignal ? "screenStable(+2) " : "")
+                        + (rawStableBonusSignal ? "rawStableBonus(+1) " : "")).trim();
+                LOG.debug("Score: " + score + "/" + requiredScore + " [" + signals + "] " +
+                        "elapsed=" + elapsed + "ms, rawStable=" + timeSinceLastData + "ms, screenChecks=" + stableScreenCount);
             }
 
-            // Signal 3: Raw data stable > threshold (+2)
-            if (timeSinceLastData >= rawStableThreshold) {
-                score += 2;
-                scoreDebug.append("rawStable(+2) ");
-            }
-
-            // Signal 4: Screen stable for N checks (+2)
-            if (stableScreenCount >= screenStableChecksNeeded) {
-                score += 2;
-                scoreDebug.append("screenStable(+2) ");
-            }
-
-            // Signal 5: Raw data stable for longer period - bonus (+1)
-            if (timeSinceLastData >= rawStableBonusThreshold) {
-                score += 1;
-                scoreDebug.append("rawStableBonus(+1) ");
-            }
-
-            debug("Score: " + score + "/" + requiredScore + " [" + scoreDebug.toString().trim() + "] " +
-                    "elapsed=" + elapsed + "ms, rawStable=" + timeSinceLastData + "ms, screenChecks=" + stableScreenCount);
-
             // Check if we have enough confidence to exit
             if (score >= requiredScore) {
-                debug("Command complete: score=" + score + " >= " + requiredScore);
+                debug(() -> "Command complete: score=" + score + " >= " + requiredScore);
                 break;
             }
 
-            sleep(checkInterval);
+            version = processor.awaitData(version, checkInterval);
         }
 
         // Return the accumulated raw content
         String result = processor.getScreenContent();
-        debug("Final raw content length: " + result.length());
+        debug(() -> "Final raw content length: " + result.length());
         return result;
     }
 
+    /**
+     * Sends a space if the screen shows a pager prompt, and lets the next page arrive.
+     *
+     * @return whether the pager was answered
+     */
+    private boolean answerPager(JediTermProcessor processor, OutputStream output, String screenContent,
+                                Pattern morePattern) throws IOException {
+        Matcher screenMoreMatcher = morePattern.matcher(screenContent);
+        if (!screenMoreMatcher.find()) {
+            return false;
+        }
+        debug(() -> "MORE matched in SCREEN content: '" + screenMoreMatcher.group() + "'");
+        // Show context around the match
+        int start = Math.max(0, screenMoreMatcher.start() - 30);
+        int end = Math.min(screenContent.length(), screenMoreMatcher.end() + 30);
+        debug(() -> "MORE context in screen: '..." + screenContent.substring(start, end).replace("\n", "\\n").replace("\r", "\\r") + "...'");
+        debug(() -> "Found 'more' prompt, sending space");
+        long pageVersion = processor.getDataVersion();
+        output.write(' ');
+        output.flush();
+        // Let the next page arrive before the screen is looked at again
+        processor.awaitData(pageVersion, 500);
+        processor.awaitQuiet(QUIET_MILLIS, 500);
+        return true;
+    }
+
+    /**
+     * A printf of the marker and the exit status, typed as its own line after the command, so
+     * whatever the command line ends in (a trailing {@code &}, a comment, a heredoc) it doesn't
+     * change how the printf is read; {@code $?} is then the status of the command line. The marker
+     * is split in two printf arguments, so the echoed line doesn't contain it, only the printed
+     * output does.
+     */
+    private static String markerLine(String token) {
+        int split = token.lastIndexOf('_');
+        return "printf '\\n%s_%s %s\\n' " + token.substring(0, split) + " " + token.substring(split + 1) + " \"$?\"";
+    }
+
+    /**
+     * Drops the echo of a typed line. The terminal may echo it right after the command or, with
+     * line editing, only after the next prompt, so it is looked for anywhere.
+     */
+    private static String withoutEcho(String screenContent, String typed) {
+        StringBuilder kept = new StringBuilder();
+        for (String line : screenContent.split("\n", -1)) {
+            if (!line.trim().endsWith(typed)) {
+                kept.append(line).append('\n');
+            }
+        }
+        return kept.toString();
+    }
+
+    /**
+     * Waits until the marker line shows on the screen, paging on as the command's output asks.
+     * No scoring and no quiet periods: the shell prints the marker only once the command has
+     * exited, however long it paused on the way.
+     *
+     * @return the screen content including the marker line
+     */
+    private String waitForMarker(JediTermProcessor processor, OutputStream output, Pattern marker,
+                                 Pattern morePattern) throws IOException {
+        long timeout = 60000;
+        long deadline = System.currentTimeMillis() + timeout;
+        long version = processor.getDataVersion();
+
+        debug(() -> "Waiting for command completion (marker)");
+        while (true) {
+            String screenContent = processor.getScreenContent();
+            if (marker.matcher(screenContent).find()) {
+                debug(() -> "Command complete: marker found");
+                return screenContent;
+            }
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                throw new IOException("Completion marker did not show within " + timeout + " ms");
+            }
+            if (answerPager(processor, output, screenContent, morePattern)) {
+                version = processor.getDataVersion();
+                continue;
+            }
+            version = processor.awaitData(version, remaining);
+        }
+    }
+
     // ==================== UTILITY METHODS ====================
 
     private void sendLine(OutputStream output, String text) throws IOException {
@@ -409,51 +804,57 @@ public class JediTermSshExecutor {
         output.flush();
     }
 
-    private void sleep(long ms) {
-        try {
-            Thread.sleep(ms);
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
+    /**
+     * True if a trimmed screen line is the echo of the typed command: the command alone, or the
+     * prompt followed by it. Output that merely ends in the command's text ("tools" after "ls") isn't.
+     */
+    static boolean isEcho(String line, String prompt, String command) {
+        String typed = command.trim();
+        if (line.equals(typed)) {
+            return true;
         }
+        return prompt != null && line.startsWith(prompt) && line.substring(prompt.length()).trim().equals(typed);
     }
 
-    private void debug(String message) {
-        if (DEBUG) {
-            System.out.println("[DEBUG] " + message);
-        }
+    private void debug(Supplier<String> message) {
+        LOG.debug(message);
     }
 
     /**
      * Cleans the output by removing the echoed command and trailing prompt.
+     *
+     * @param echoTaken the echo already scrolled off and was dropped from the streamed lines; any
+     *                  line on the screen that looks like it is output
      */
-    private  String cleanOutput(String output, String command, String prompt) {
-        debug("[cleanOutput] Starting cleanup...");
-        debug("[cleanOutput] Input length: " + output.length());
-        debug("[cleanOutput] Command to remove: '" + command + "'");
-        debug("[cleanOutput] Prompt to remove: '" + prompt + "'");
+    private  String cleanOutput(String output, String command, String prompt, boolean echoTaken) {
+        debug(() -> "[cleanOutput] Starting cleanup...");
+        debug(() -> "[cleanOutput] Input length: " + output.length());
+        debug(() -> "[cleanOutput] Command to remove: '" + command + "'");
+        debug(() -> "[cleanOutput] Prompt to remove: '" + prompt + "'");
 
         String[] lines = output.split("\\r?\\n");
-        debug("[cleanOutput] Total lines: " + lines.length);
+        debug(() -> "[cleanOutput] Total lines: " + lines.length);
 
         StringBuilder cleaned = new StringBuilder();
-        boolean foundCommandLine = false;
+        boolean foundCommandLine = echoTaken;
         int skippedCount = 0;
         int addedCount = 0;
 
         for (int i = 0; i < lines.length; i++) {
+            int lineNo = i;
             String line = lines[i];
             String trimmed = line.trim();
 
             // Skip empty lines at start
             if (cleaned.isEmpty() && trimmed.isEmpty()) {
-                debug("[cleanOutput] Line " + i + ": SKIP (empty at start)");
+                debug(() -> "[cleanOutput] Line " + lineNo + ": SKIP (empty at start)");
                 skippedCount++;
                 continue;
             }
 
             // Skip the echoed command (first occurrence only)
-            if (!foundCommandLine && (trimmed.equals(command) || trimmed.endsWith(command))) {
-                debug("[cleanOutput] Line " + i + ": SKIP (command echo): '" + trimmed + "'");
+            if (!foundCommandLine && isEcho(trimmed, prompt, command)) {
+                debug(() -> "[cleanOutput] Line " + lineNo + ": SKIP (command echo): '" + trimmed + "'");
                 foundCommandLine = true;
                 skippedCount++;
                 continue;
@@ -461,14 +862,7 @@ public class JediTermSshExecutor {
 
             // Skip lines that are ONLY the prompt (not lines containing prompt + content)
             if (trimmed.equals(prompt)) {
-                debug("[cleanOutput] Line " + i + ": SKIP (prompt only): '" + trimmed + "'");
-                skippedCount++;
-                continue;
-            }
-
-            // Skip lines that are prompt + command (like "> show version")
-            if (trimmed.startsWith(prompt) && trimmed.substring(prompt.length()).trim().equals(command)) {
-                debug("[cleanOutput] Line " + i + ": SKIP (prompt+command): '" + trimmed + "'");
+                debug(() -> "[cleanOutput] Line " + lineNo + ": SKIP (prompt only): '" + trimmed + "'");
                 skippedCount++;
                 continue;
             }
@@ -476,18 +870,20 @@ public class JediTermSshExecutor {
             // Remove trailing whitespace padding from JediTerm
             String cleanedLine = line.replaceAll("\\s+$", "");
             if (!cleanedLine.isEmpty()) {
-                debug("[cleanOutput] Line " + i + ": ADD: '" + (cleanedLine.length() > 80 ? cleanedLine.substring(0, 80) + "..." : cleanedLine) + "'");
+                debug(() -> "[cleanOutput] Line " + lineNo + ": ADD: '" + (cleanedLine.length() > 80 ? cleanedLine.substring(0, 80) + "..." : cleanedLine) + "'");
                 cleaned.append(cleanedLine).append("\n");
                 addedCount++;
             } else {
-                debug("[cleanOutput] Line " + i + ": SKIP (empty after trim)");
+                debug(() -> "[cleanOutput] Line " + lineNo + ": SKIP (empty after trim)");
                 skippedCount++;
             }
         }
 
         String result = cleaned.toString().trim();
-        debug("[cleanOutput] Cleanup complete - Added: " + addedCount + ", Skipped: " + skippedCount);
-        debug("[cleanOutput] Final output length: " + result.length());
+        int added = addedCount;
+        int skipped = skippedCount;
+        debug(() -> "[cleanOutput] Cleanup complete - Added: " + added + ", Skipped: " + skipped);
+        debug(() -> "[cleanOutput] Final output length: " + result.length());
 
         return result;
     }
@@ -500,60 +896,134 @@ public class JediTermSshExecutor {
      * This is like having a dedicated decoder chip that continuously processes
      * the incoming signal and updates the display buffer.
      */
-    private static class JediTermProcessor implements Runnable {
+    static class JediTermProcessor implements Runnable, ChannelDataStream.ReadListener {
         private final InputStream inputStream;
         private final TerminalTextBuffer textBuffer;
         private final JediTerminal terminal;
-        private final Object lock = new Object();
-        private final StringBuilder rawBuffer = new StringBuilder();
+        // A ReentrantLock rather than a monitor: waiting on a monitor would pin a virtual thread
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition dataArrived = lock.newCondition();
+        private final RawHistory raw = new RawHistory(RAW_HISTORY_CHARS);
+        // Raw position at the last clearRawBuffer()
+        private long rawMark;
+        // Set while output is plain enough to skip emulation; null once JediTerm has taken over
+        private PlainTextScreen plain;
+        private long dataVersion;
+        private boolean unpublished;
+        private boolean ended;
         private volatile boolean running = true;
 
+        // Streaming state, guarded by lock; the listener is only called outside it
+        private OutputListener listener;
+        private Pattern morePattern = DeviceProfile.GENERIC.getMorePattern();
+        private String streamCommand;
+        private String streamMarkerLine;
+        private String streamPrompt;
+        private boolean echoSeen;
+        private volatile boolean delivering;
+
+        // Pauses between chunks of the running command, guarded by lock
+        private CompletionTimingModel.Gaps gaps;
+        private long lastDataMillis;
+
         public JediTermProcessor(InputStream inputStream, JediTerminal terminal, TerminalTextBuffer textBuffer) {
+            this(inputStream, terminal, textBuffer, false);
+        }
+
+        /**
+         * @param plainText start with the cheap {@link PlainTextScreen} and only hand over to
+         *                  JediTerm once the output addresses the cursor
+         */
+        public JediTermProcessor(InputStream inputStream, JediTerminal terminal, TerminalTextBuffer textBuffer, boolean plainText) {
             this.inputStream = inputStream;
             this.terminal = terminal;
             this.textBuffer = textBuffer;
+            this.plain = plainText ? new PlainTextScreen(textBuffer.getWidth(), textBuffer.getHeight(), PLAIN_HISTORY_LINES) : null;
         }
 
         @Override
         public void run() {
+            ChannelDataStream stream = new ChannelDataStream(inputStream, StandardCharsets.UTF_8, READ_BUFFER_SIZE, this);
+            lock.lock();
             try {
-                byte[] buffer = new byte[4096];
-                int bytesRead;
-
-                while (running && (bytesRead = inputStream.read(buffer)) != -1) {
-                    if (bytesRead > 0) {
-                        String data = new String(buffer, 0, bytesRead, StandardCharsets.UTF_8);
-                        processData(data);
-                    }
+                if (plain != null && !runPlain(stream)) {
+                    return;
+                }
+                // One emulator for the life of the channel, so it keeps its parser state between reads
+                Emulator emulator = new JediEmulator(stream, terminal);
+                while (running && emulator.hasNext()) {
+                    emulator.next();
                 }
             } catch (IOException e) {
                 if (running) {
-                    System.err.println("JediTerm processor error: " + e.getMessage());
+                    LOG.warn("JediTerm processor error: " + e.getMessage());
+                }
+            } finally {
+                if (unpublished) {
+                    dataVersion++;
                 }
+                ended = true;
+                dataArrived.signalAll();
+                lock.unlock();
             }
         }
 
         /**
-         * Processes a chunk of terminal data through JediTerm.
+         * Feeds the plain-text screen until the stream ends or the output needs a real terminal.
+         * In that case the plain screen is replayed into JediTerm, followed by the sequence that
+         * needed it, and the rest of the stream goes to the emulator.
+         *
+         * @return true if the emulator has to take over
          */
-        private void processData(String data) {
-            synchronized (lock) {
-                try {
-                    // Convert to char array for JediTerm's ArrayTerminalDataStream
-                    char[] chars = data.toCharArray();
-                    ArrayTerminalDataStream dataStream = new ArrayTerminalDataStream(chars);
-
-                    // Create emulator and process all characters
-                    Emulator emulator = new JediEmulator(dataStream, terminal);
-                    while (emulator.hasNext()) {
-                        emulator.next();
+        private boolean runPlain(ChannelDataStream stream) throws IOException {
+            try {
+                while (running) {
+                    if (!plain.accept(stream.getChar())) {
+                        char[] sequence = plain.pendingSequence();
+                        stream.pushBackBuffer(sequence, sequence.length);
+                        char[] replay = plain.replayText().toCharArray();
+                        stream.pushBackBuffer(replay, replay.length);
+                        plain = null;
+                        LOG.debug("Output addresses the cursor, switching from plain text to terminal emulation");
+                        return true;
                     }
+                }
+                return false;
+            } catch (TerminalDataStream.EOF e) {
+                return false;
+            }
+        }
 
-                    // Also keep raw data for reference
-                    rawBuffer.append(data);
-                } catch (IOException e) {
-                    System.err.println("Error processing terminal data: " + e.getMessage());
+        /**
+         * The emulator has drawn everything read so far: tell waiters, then let go of the lock
+         * while the next read blocks, and hand scrolled lines to a streaming listener meanwhile.
+         */
+        @Override
+        public void beforeRead() {
+            if (unpublished) {
+                unpublished = false;
+                dataVersion++;
+                dataArrived.signalAll();
+            }
+            lock.unlock();
+            deliver(takeScrolledLines());
+        }
+
+        /**
+         * Takes the lock back for emulating the chunk just read. The raw chars go into the
+         * bounded history for reference.
+         */
+        @Override
+        public void afterRead(char[] chars, int offset, int length) {
+            lock.lock();
+            raw.append(chars, offset, length);
+            if (length > 0) {
+                unpublished = true;
+                long now = System.currentTimeMillis();
+                if (gaps != null) {
+                    gaps.add(now - lastDataMillis, now);
                 }
+                lastDataMillis = now;
             }
         }
 
@@ -561,23 +1031,305 @@ public class JediTermSshExecutor {
             running = false;
         }
 
+        /**
+         * Starts timing the pauses between chunks for a command that is about to be sent, from
+         * now on; null stops timing. The previous command's pauses go to the model.
+         */
+        public void recordGaps(CompletionTimingModel.Gaps next) {
+            CompletionTimingModel.Gaps previous;
+            lock.lock();
+            try {
+                previous = gaps;
+                gaps = next;
+                lastDataMillis = System.currentTimeMillis();
+            } finally {
+                lock.unlock();
+            }
+            if (previous != null) {
+                previous.commit();
+            }
+        }
+
+        /**
+         * The command was called complete; pauses ending later than {@code millis} from now don't count.
+         */
+        public void closeGapsAfter(long millis) {
+            lock.lock();
+            try {
+                if (gaps != null) {
+                    gaps.closeAfter(millis);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Counts processed chunks. Take it before writing to the shell and pass it to
+         * {@link #awaitData} to wait for the answer.
+         */
+        public long getDataVersion() {
+            lock.lock();
+            try {
+                return dataVersion;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Waits until a chunk newer than {@code version} has been processed, the stream has ended
+         * or the timeout has passed, whichever comes first.
+         *
+         * @return the data version when the wait ended; equal to {@code version} if nothing came
+         */
+        public long awaitData(long version, long timeoutMillis) {
+            long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            lock.lock();
+            try {
+                while (dataVersion == version && !ended && remaining > 0) {
+                    remaining = dataArrived.awaitNanos(remaining);
+                }
+                return dataVersion;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return dataVersion;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Waits until no data has arrived for {@code quietMillis}, but no longer than
+         * {@code maxMillis} in total. Devices send a prompt or a banner in a burst of chunks;
+         * this lets the burst finish before the screen is looked at.
+         *
+         * @return true if the output went quiet, false if it was still coming at the deadline
+         */
+        public boolean awaitQuiet(long quietMillis, long maxMillis) {
+            long deadline = System.currentTimeMillis() + maxMillis;
+            long version = getDataVersion();
+            while (true) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                long next = awaitData(version, Math.min(quietMillis, remaining));
+                if (next == version) {
+                    return true;
+                }
+                version = next;
+            }
+        }
+
+        /**
+         * Waits for the channel to reach end of stream, e.g. after sending exit.
+         *
+         * @return true if it ended within the timeout
+         */
+        public boolean awaitEnd(long timeoutMillis) {
+            long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            lock.lock();
+            try {
+                while (!ended && remaining > 0) {
+                    remaining = dataArrived.awaitNanos(remaining);
+                }
+                return ended;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return ended;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * The device's pager prompt, so pager lines are left out of streamed output.
+         */
+        public void setMorePattern(Pattern morePattern) {
+            lock.lock();
+            try {
+                this.morePattern = morePattern;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * From now on, lines scrolling off the screen go to the listener and are dropped from history.
+         */
+        public void startStreaming(OutputListener listener, String command, String prompt) {
+            startStreaming(listener, command, null, prompt);
+        }
+
+        /**
+         * @param markerLine a line typed after the command whose echo is dropped too, or null
+         */
+        public void startStreaming(OutputListener listener, String command, String markerLine, String prompt) {
+            lock.lock();
+            try {
+                if (plain != null) {
+                    plain.clearHistory();
+                } else {
+                    textBuffer.clearHistory();
+                }
+                this.streamCommand = command;
+                this.streamMarkerLine = markerLine;
+                this.streamPrompt = prompt;
+                this.echoSeen = false;
+                this.listener = listener;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Delivers whatever has scrolled off since the last chunk and stops streaming.
+         */
+        public void stopStreaming() {
+            List<String> remaining = takeScrolledLines();
+            deliver(remaining);
+            lock.lock();
+            try {
+                listener = null;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * True if the command's echo scrolled off and was dropped from the streamed lines.
+         */
+        public boolean isEchoSeen() {
+            lock.lock();
+            try {
+                return echoSeen;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public boolean isDelivering() {
+            return delivering;
+        }
+
+        private List<String> takeScrolledLines() {
+            lock.lock();
+            try {
+                if (listener == null) {
+                    return List.of();
+                }
+                List<String> lines = new ArrayList<>();
+                if (plain != null) {
+                    for (String text : plain.getHistory()) {
+                        addScrolledLine(lines, text);
+                    }
+                    plain.clearHistory();
+                } else {
+                    for (var line : textBuffer.getHistoryLinesStorage()) {
+                        addScrolledLine(lines, line.getText());
+                    }
+                    textBuffer.clearHistory();
+                }
+                return lines;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Keeps a scrolled line unless it is blank, the prompt, a pager prompt or the echo of the
+         * command or marker line.
+         */
+        private void addScrolledLine(List<String> lines, String text) {
+            if (text == null) {
+                return;
+            }
+            text = text.stripTrailing();
+            String trimmed = text.trim();
+            if (trimmed.isEmpty() || trimmed.equals(streamPrompt) || morePattern.matcher(trimmed).find()) {
+                return;
+            }
+            if (streamMarkerLine != null && trimmed.endsWith(streamMarkerLine)) {
+                return;
+            }
+            if (!echoSeen && isEcho(trimmed, streamPrompt, streamCommand)) {
+                echoSeen = true;
+                return;
+            }
+            lines.add(text);
+        }
+
+        private void deliver(List<String> lines) {
+            OutputListener target;
+            lock.lock();
+            try {
+                target = listener;
+            } finally {
+                lock.unlock();
+            }
+            if (target == null || lines.isEmpty()) {
+                return;
+            }
+            delivering = true;
+            try {
+                for (String line : lines) {
+                    target.onOutput(line + "\n");
+                }
+            } finally {
+                delivering = false;
+            }
+        }
+
         /**
          * Gets the current "screen" content - what would be visible on a terminal.
          * JediTerm has already processed all escape sequences, so this is clean text.
          */
         public String getScreenContent() {
-            synchronized (lock) {
-                return textBuffer.getScreenLines();
+            lock.lock();
+            try {
+                return plain != null ? plain.getScreenLines() : textBuffer.getScreenLines();
+            } finally {
+                lock.unlock();
             }
         }
 
         /**
-         * Gets the raw content received (before JediTerm processing).
+         * Gets the raw content received (before JediTerm processing) since the last
+         * {@link #clearRawBuffer()}, at most the last {@code RAW_HISTORY_CHARS} of it.
          * Useful for debugging or when JediTerm hasn't processed the data yet.
          */
         public String getRawContent() {
-            synchronized (lock) {
-                return rawBuffer.toString();
+            lock.lock();
+            try {
+                return raw.since(rawMark);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Counts every char received on the channel; it only grows, also across
+         * {@link #clearRawBuffer()}. Remember it and pass it to {@link #getRawSince(long)} later.
+         */
+        public long getRawPosition() {
+            lock.lock();
+            try {
+                return raw.position();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * The raw content received after {@code position}, as far as the history still holds it.
+         */
+        public String getRawSince(long position) {
+            lock.lock();
+            try {
+                return raw.since(position);
+            } finally {
+                lock.unlock();
             }
         }
 
@@ -586,8 +1338,23 @@ public class JediTermSshExecutor {
          * to ensure only command output is captured.
          */
         public void clearRawBuffer() {
-            synchronized (lock) {
-                rawBuffer.setLength(0);
+            lock.lock();
+            try {
+                rawMark = raw.position();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Number of characters received since the last {@link #clearRawBuffer()}, without copying them.
+         */
+        public long getRawLength() {
+            lock.lock();
+            try {
+                return raw.position() - rawMark;
+            } finally {
+                lock.unlock();
             }
         }
 
@@ -596,8 +1363,15 @@ public class JediTermSshExecutor {
          * to ensure only command output is captured.
          */
         public void cleartextBuffer() {
-            synchronized (lock) {
-                textBuffer.clearScreenBuffer();
+            lock.lock();
+            try {
+                if (plain != null) {
+                    plain.clearScreen();
+                } else {
+                    textBuffer.clearScreenBuffer();
+                }
+            } finally {
+                lock.unlock();
             }
         }
 
@@ -605,9 +1379,19 @@ public class JediTermSshExecutor {
          * Gets the full history + screen content.
          */
         public String getFullContent() {
-            synchronized (lock) {
+            lock.lock();
+            try {
                 StringBuilder sb = new StringBuilder();
 
+                if (plain != null) {
+                    for (String lineText : plain.getHistory()) {
+                        if (!lineText.isEmpty()) {
+                            sb.append(lineText).append("\n");
+                        }
+                    }
+                    return sb.append(plain.getScreenLines()).toString();
+                }
+
                 // Get history buffer content using new API (getHistoryLinesStorage)
                 var historyStorage = textBuffer.getHistoryLinesStorage();
                 for (var line : historyStorage) {
@@ -621,6 +1405,8 @@ public class JediTermSshExecutor {
                 sb.append(textBuffer.getScreenLines());
 
                 return sb.toString();
+            } finally {
+                lock.unlock();
             }
         }
     }
@@ -631,7 +1417,7 @@ public class JediTermSshExecutor {
      * Minimal TerminalDisplay implementation for headless operation.
      * Like a monitor that's just a frame buffer without actual display hardware.
      */
-    private static class BackBufferDisplay implements com.jediterm.terminal.TerminalDisplay {
+    static class BackBufferDisplay implements com.jediterm.terminal.TerminalDisplay {
         private final TerminalTextBuffer textBuffer;
         private String windowTitle = "";
 
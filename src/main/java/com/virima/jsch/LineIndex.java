@@ -0,0 +1,78 @@
+package com.virima.jsch;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+
+/**
+ * Start offsets of every line in a {@link SpillableOutput}, found with one pass over the bytes.
+ * <p>
+ * Lines end at {@code \n}; a trailing {@code \r} is dropped as well. Like {@link String#lines()},
+ * a final line break does not start an extra empty line.
+ */
+final class LineIndex {
+    private final long size;
+    private long[] starts = new long[64];
+    private int count;
+
+    private LineIndex(long size) {
+        this.size = size;
+    }
+
+    static LineIndex build(SpillableOutput output) {
+        LineIndex index = new LineIndex(output.size());
+        try (InputStream in = output.openStream()) {
+            byte[] buffer = new byte[64 * 1024];
+            long position = 0;
+            boolean atLineStart = true;
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                for (int i = 0; i < n; i++) {
+                    if (atLineStart) {
+                        index.add(position + i);
+                        atLineStart = false;
+                    }
+                    if (buffer[i] == '\n') {
+                        atLineStart = true;
+                    }
+                }
+                position += n;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        index.starts = Arrays.copyOf(index.starts, index.count);
+        return index;
+    }
+
+    private void add(long start) {
+        if (count == starts.length) {
+            starts = Arrays.copyOf(starts, count * 2);
+        }
+        starts[count++] = start;
+    }
+
+    int lineCount() {
+        return count;
+    }
+
+    long start(int line) {
+        return starts[line];
+    }
+
+    /**
+     * Length of the line's content, without its line break.
+     */
+    int length(int line, SpillableOutput output) {
+        long end = line + 1 < count ? starts[line + 1] : size;
+        long start = starts[line];
+        if (end > start && output.read(end - 1, 1)[0] == '\n') {
+            end--;
+            if (end > start && output.read(end - 1, 1)[0] == '\r') {
+                end--;
+            }
+        }
+        return (int) (end - start);
+    }
+}
@@ -0,0 +1,29 @@
+package com.virima.jsch;
+
+/**
+ * Receives command output piece by piece while the command is still running.
+ * <p>
+ * Called on the thread that reads the channel, so a slow listener is the backpressure: while
+ * it is busy nothing is read, JSch's input pipe (32 KB unless {@code max_input_buffer_size} is
+ * set) fills up, JSch stops granting window to the server and the device stops sending.
+ * Nothing is buffered on our side beyond that pipe.
+ * <p>
+ * Keep in mind the stall is per session: other channels multiplexed on the same session wait
+ * with it.
+ */
+@FunctionalInterface
+public interface OutputListener {
+
+    /**
+     * One piece of output. Exec commands deliver text as it arrives; shell commands deliver
+     * whole lines, already stripped of the command echo, prompts and paging prompts.
+     */
+    void onOutput(String chunk);
+
+    /**
+     * One piece of stderr from an exec command. Called from the command's own stderr reader thread,
+     * concurrently with {@link #onOutput(String)}. The stderr is also kept, capped, on the result.
+     */
+    default void onError(String chunk) {
+    }
+}
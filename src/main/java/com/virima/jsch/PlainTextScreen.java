@@ -0,0 +1,356 @@
+package com.virima.jsch;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * A line-based stand-in for JediTerm's screen, for hosts that send plain text over a dumb pty.
+ * <p>
+ * Characters go onto the current line, a line feed moves on to the next one, a line that reaches
+ * the right margin wraps like it would on the real screen, and lines that leave the last
+ * {@code height} go to history. It understands what line-oriented output actually uses: CR/LF in
+ * any combination, backspace overstrike, tabs, SGR colors, erase-in-line and horizontal cursor
+ * moves; OSC titles and other escape sequences are dropped. Feeding a char allocates nothing; a String is only
+ * made when a line is done.
+ * <p>
+ * Anything that addresses the cursor on the screen (cursor position, scroll regions, alternate
+ * screen, ...) can't be represented by lines. {@link #accept(char)} then returns false and the
+ * caller switches to JediTerm, replaying {@link #replayText()} and the offending sequence from
+ * {@link #pendingSequence()} into it.
+ * <p>
+ * Not thread-safe; the processor guards it with its lock.
+ */
+final class PlainTextScreen {
+
+    private static final int TAB_WIDTH = 8;
+    // Longer escape sequences than this are garbage; they are dropped rather than handed over
+    private static final int MAX_SEQUENCE = 64;
+    private static final int MAX_PARAMS = 8;
+
+    private enum State { TEXT, ESCAPE, ESCAPE_SKIP_ONE, CSI, OSC, OSC_ESCAPE }
+
+    private final int width;
+    private final int height;
+    private final int maxHistory;
+    private final Deque<String> screen = new ArrayDeque<>();
+    private final Deque<String> history = new ArrayDeque<>();
+    private final StringBuilder line = new StringBuilder(256);
+    private int column;
+
+    private State state = State.TEXT;
+    private final char[] sequence = new char[MAX_SEQUENCE];
+    private int sequenceLength;
+    private boolean sequenceTruncated;
+    private final int[] params = new int[MAX_PARAMS];
+    private int paramCount;
+    private boolean privateMode;
+
+    PlainTextScreen(int width, int height, int maxHistory) {
+        this.width = Math.max(1, width);
+        this.height = Math.max(1, height);
+        this.maxHistory = maxHistory;
+    }
+
+    /**
+     * Feeds one char.
+     *
+     * @return false if the char ended a sequence that needs a real terminal; nothing of that
+     * sequence has been applied
+     */
+    boolean accept(char c) {
+        switch (state) {
+            case TEXT:
+                return text(c);
+            case ESCAPE:
+                return escape(c);
+            case ESCAPE_SKIP_ONE:
+                // Character set designation, e.g. ESC ( B
+                state = State.TEXT;
+                return true;
+            case CSI:
+                return csi(c);
+            case OSC:
+                remember(c);
+                if (c == 0x07) {
+                    state = State.TEXT;
+                } else if (c == 0x1b) {
+                    state = State.OSC_ESCAPE;
+                }
+                return true;
+            case OSC_ESCAPE:
+                // ESC \ ends the string; anything else keeps it going
+                state = c == '\\' ? State.TEXT : State.OSC;
+                return true;
+            default:
+                return true;
+        }
+    }
+
+    private boolean text(char c) {
+        switch (c) {
+            case '\n':
+                commitLine();
+                break;
+            case '\r':
+                column = 0;
+                break;
+            case '\b':
+                if (column > 0) {
+                    column--;
+                }
+                break;
+            case '\t':
+                column = Math.min(width - 1, (column / TAB_WIDTH + 1) * TAB_WIDTH);
+                break;
+            case 0x1b:
+                state = State.ESCAPE;
+                sequenceLength = 0;
+                sequenceTruncated = false;
+                remember(c);
+                break;
+            default:
+                if (c >= 0x20 && c != 0x7f) {
+                    put(c);
+                }
+                // Other control chars (BEL, SI/SO, ...) don't change the text
+                break;
+        }
+        return true;
+    }
+
+    private boolean escape(char c) {
+        remember(c);
+        switch (c) {
+            case '[':
+                state = State.CSI;
+                paramCount = 0;
+                params[0] = 0;
+                privateMode = false;
+                return true;
+            case ']':
+                state = State.OSC;
+                return true;
+            case '(':
+            case ')':
+            case '*':
+            case '+':
+                state = State.ESCAPE_SKIP_ONE;
+                return true;
+            case '7':  // save cursor
+            case '8':  // restore cursor
+            case 'M':  // reverse index
+            case 'D':  // index
+            case 'E':  // next line
+            case 'c':  // reset
+                state = State.TEXT;
+                return false;
+            default:
+                // Keypad modes and the like
+                state = State.TEXT;
+                return true;
+        }
+    }
+
+    private boolean csi(char c) {
+        remember(c);
+        if (c >= '0' && c <= '9') {
+            if (paramCount == 0) {
+                paramCount = 1;
+            }
+            if (paramCount <= MAX_PARAMS) {
+                params[paramCount - 1] = Math.min(params[paramCount - 1] * 10 + (c - '0'), 9999);
+            }
+            return true;
+        }
+        if (c == ';') {
+            if (paramCount == 0) {
+                paramCount = 1;
+            }
+            paramCount++;
+            if (paramCount <= MAX_PARAMS) {
+                params[paramCount - 1] = 0;
+            }
+            return true;
+        }
+        if (c == '?' || c == '>' || c == '=') {
+            privateMode = true;
+            return true;
+        }
+        if (c < 0x40 || c > 0x7e) {
+            // Intermediate bytes
+            return true;
+        }
+        state = State.TEXT;
+        // A truncated sequence can't be replayed as sent; it is dropped, not half handed over
+        return csiFinal(c) || sequenceTruncated;
+    }
+
+    private boolean csiFinal(char c) {
+        int n = paramCount == 0 || params[0] == 0 ? 1 : params[0];
+        if (privateMode) {
+            // Mode switches are harmless, except the alternate screen full-screen programs use
+            if ((c == 'h' || c == 'l') && hasParam(47, 1047, 1049)) {
+                return false;
+            }
+            return true;
+        }
+        switch (c) {
+            case 'm':  // colors and attributes
+                return true;
+            case 'K':  // erase in line
+                eraseInLine(paramCount == 0 ? 0 : params[0]);
+                return true;
+            case 'C':  // cursor forward, stopping at the right margin
+                column = Math.min(width - 1, column + n);
+                return true;
+            case 'D':  // cursor back
+                column = Math.max(0, column - n);
+                return true;
+            case 'G':  // cursor to column
+                column = Math.min(width, n) - 1;
+                return true;
+            case 'H':
+            case 'f':
+            case 'A':
+            case 'B':
+            case 'E':
+            case 'F':
+            case 'd':
+            case 'r':
+            case 'J':
+            case 'L':
+            case 'M':
+            case 'P':
+            case '@':
+            case 'S':
+            case 'T':
+            case 'X':
+            case 's':
+            case 'u':
+                // Cursor addressing and screen editing
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    private boolean hasParam(int... values) {
+        for (int i = 0; i < Math.min(paramCount, MAX_PARAMS); i++) {
+            for (int value : values) {
+                if (params[i] == value) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void remember(char c) {
+        if (sequenceLength < MAX_SEQUENCE) {
+            sequence[sequenceLength++] = c;
+        } else {
+            sequenceTruncated = true;
+        }
+    }
+
+    private void put(char c) {
+        if (column >= width) {
+            // The previous char filled the last column; this one starts the next line
+            commitLine();
+        }
+        while (line.length() < column) {
+            line.append(' ');
+        }
+        if (column < line.length()) {
+            // Overstrike: the later char wins, as on a screen
+            line.setCharAt(column, c);
+        } else {
+            line.append(c);
+        }
+        column++;
+    }
+
+    private void eraseInLine(int mode) {
+        if (mode == 0) {
+            if (column < line.length()) {
+                line.setLength(column);
+            }
+        } else if (mode == 1) {
+            for (int i = 0; i < Math.min(column + 1, line.length()); i++) {
+                line.setCharAt(i, ' ');
+            }
+        } else if (mode == 2) {
+            line.setLength(0);
+        }
+    }
+
+    private void commitLine() {
+        screen.addLast(line.toString());
+        line.setLength(0);
+        column = 0;
+        while (screen.size() >= height) {
+            history.addLast(screen.removeFirst());
+            if (history.size() > maxHistory) {
+                history.removeFirst();
+            }
+        }
+    }
+
+    /**
+     * The visible lines, the current one last, like {@code TerminalTextBuffer.getScreenLines()}.
+     */
+    String getScreenLines() {
+        StringBuilder text = new StringBuilder();
+        for (String screenLine : screen) {
+            text.append(screenLine).append('\n');
+        }
+        return text.append(line).toString();
+    }
+
+    /**
+     * Lines that scrolled off the top, oldest first.
+     */
+    Iterable<String> getHistory() {
+        return history;
+    }
+
+    void clearHistory() {
+        history.clear();
+    }
+
+    void clearScreen() {
+        screen.clear();
+        line.setLength(0);
+        column = 0;
+    }
+
+    /**
+     * History and screen as text that draws the same on a fresh terminal, cursor included.
+     */
+    String replayText() {
+        StringBuilder text = new StringBuilder();
+        for (String historyLine : history) {
+            text.append(historyLine).append("\r\n");
+        }
+        for (String screenLine : screen) {
+            text.append(screenLine).append("\r\n");
+        }
+        text.append(line);
+        if (column != line.length()) {
+            text.append('\r');
+            if (column > 0) {
+                text.append("\u001b[").append(column).append('C');
+            }
+        }
+        return text.toString();
+    }
+
+    /**
+     * The chars of the sequence that made {@link #accept(char)} return false.
+     */
+    char[] pendingSequence() {
+        char[] pending = new char[sequenceLength];
+        System.arraycopy(sequence, 0, pending, 0, sequenceLength);
+        return pending;
+    }
+}
@@ -0,0 +1,68 @@
+package com.virima.jsch;
+
+/**
+ * The last {@code capacity} chars received on a shell, in a ring buffer.
+ * <p>
+ * {@link #position()} counts every char ever appended and never goes back, so a caller can
+ * remember a position and later ask for just what came after it. Comparing positions is the cheap
+ * way to see whether anything arrived; nothing is copied until text is actually asked for, and
+ * then only the part after the position.
+ * <p>
+ * Not thread-safe; the owner guards it.
+ */
+final class RawHistory {
+    private final char[] ring;
+    private long position;
+
+    RawHistory(int capacity) {
+        this.ring = new char[capacity];
+    }
+
+    void append(char[] chars, int offset, int length) {
+        // Only the tail of an oversized append survives anyway
+        int skip = Math.max(0, length - ring.length);
+        position += skip;
+        offset += skip;
+        length -= skip;
+        while (length > 0) {
+            int at = (int) (position % ring.length);
+            int n = Math.min(length, ring.length - at);
+            System.arraycopy(chars, offset, ring, at, n);
+            position += n;
+            offset += n;
+            length -= n;
+        }
+    }
+
+    /**
+     * Number of chars appended so far.
+     */
+    long position() {
+        return position;
+    }
+
+    /**
+     * Position of the oldest char still held.
+     */
+    long oldest() {
+        return Math.max(0, position - ring.length);
+    }
+
+    /**
+     * The chars appended after {@code from}; if some of them were overwritten already, only the
+     * ones still held.
+     */
+    String since(long from) {
+        long start = Math.max(from, oldest());
+        if (start >= position) {
+            return "";
+        }
+        int length = (int) (position - start);
+        int at = (int) (start % ring.length);
+        int first = Math.min(length, ring.length - at);
+        StringBuilder text = new StringBuilder(length);
+        text.append(ring, at, first);
+        text.append(ring, 0, length - first);
+        return text.toString();
+    }
+}
@@ -6,16 +6,22 @@
 package com.virima.jsch;
 
 import com.jcraft.jsch.Session;
+import com.virima.utils.AsyncLog;
+import com.virima.utils.ComponentLog;
 
 import java.util.concurrent.*;
 
 public class SSHCommandRunner implements Callable<CommandResult> {
     private static final String CLASSNAME = "SSHCommandRunner";
+    private static final ComponentLog LOG = AsyncLog.forComponent(CLASSNAME);
     Session session;
     String command;
     boolean isAdmin;
     private String password;
     private boolean execChannel;
+    private OutputListener listener;
+    private InteractiveShellPool shellPool;
+    private boolean markerCompletion;
 
     public SSHCommandRunner(Session session, String command,boolean execChannel, boolean isAdmin, String password) {
         this.session = session;
@@ -25,22 +31,50 @@ public class SSHCommandRunner implements Callable<CommandResult> {
         this.execChannel=execChannel;
     }
 
+    public SSHCommandRunner(Session session, String command, boolean execChannel, boolean isAdmin, String password, OutputListener listener) {
+        this(session, command, execChannel, isAdmin, password);
+        this.listener = listener;
+    }
+
     public static CommandResult executeCommand(Session session, String command,boolean executeCommand, boolean isAdmin,String password, int sshExecutionTimeInSeconds) {
+        return streamCommand(session, command, executeCommand, isAdmin, password, sshExecutionTimeInSeconds, null);
+    }
+
+    /**
+     * Like {@link #executeCommand(Session, String, boolean, boolean, String, int)}, but output goes to
+     * the listener while the command runs instead of into the result. See {@link OutputListener} for
+     * how a slow listener throttles the device.
+     */
+    public static CommandResult streamCommand(Session session, String command, boolean executeCommand, boolean isAdmin, String password,
+                                              int sshExecutionTimeInSeconds, OutputListener listener) {
+        return run(session, command, executeCommand, isAdmin, password, sshExecutionTimeInSeconds, listener, null, false);
+    }
+
+    private static CommandResult run(Session session, String command, boolean executeCommand, boolean isAdmin, String password,
+                                     int sshExecutionTimeInSeconds, OutputListener listener, InteractiveShellPool shellPool,
+                                     boolean markerCompletion) {
         CommandResult commandResult = new CommandResult(false, -1, "");
+        if (session == null) {
+            LOG.warn("No session to execute shell script on");
+            return commandResult;
+        }
         long startTime = System.currentTimeMillis();
-        System.out.println("SSHCommandRunnerExecuting shell script on host " + session.getHost()+ " with a timeout of " + sshExecutionTimeInSeconds + " secs");
-        SSHCommandRunner sshCommandRunner = new SSHCommandRunner(session, command,executeCommand, isAdmin, password);
-        ExecutorService service = Executors.newSingleThreadExecutor();
+        LOG.info(() -> "Executing shell script on host " + session.getHost()+ " with a timeout of " + sshExecutionTimeInSeconds + " secs");
+        SSHCommandRunner sshCommandRunner = new SSHCommandRunner(session, command, executeCommand, isAdmin, password, listener);
+        sshCommandRunner.shellPool = shellPool;
+        sshCommandRunner.markerCompletion = markerCompletion;
+        // A virtual thread per call keeps fleet-wide fan-out from pinning one platform thread per host
+        ExecutorService service = Executors.newVirtualThreadPerTaskExecutor();
 
         CommandResult var111;
         try {
             Future<CommandResult> future = service.submit(sshCommandRunner);
             commandResult = (CommandResult)future.get((long)sshExecutionTimeInSeconds, TimeUnit.SECONDS);
-            System.out.println("SSHCommandRunnerShell script execution completed on host " + session.getHost() + " took " + (System.currentTimeMillis() - startTime) + " ms");
+            LOG.info(() -> "Shell script execution completed on host " + session.getHost() + " took " + (System.currentTimeMillis() - startTime) + " ms");
             var111 = commandResult;
             return var111;
         } catch (TimeoutException var16) {
-            System.out.println("SSHCommandRunnerCould not execute Shell script within " + sshExecutionTimeInSeconds + " secs on host " + session.getHost());
+            LOG.warn("Could not execute Shell script within " + sshExecutionTimeInSeconds + " secs on host " + session.getHost());
             var111 = commandResult;
         } catch (Exception var17) {
             CommandResult var11 = commandResult;
@@ -52,12 +86,67 @@ public class SSHCommandRunner implements Callable<CommandResult> {
         return var111;
     }
 
+    /**
+     * Runs a command on a session borrowed from the pool. The session goes back to the pool
+     * when the command completes, and is discarded if it failed or timed out, since a
+     * half-finished channel may still be attached to it.
+     */
+    public static CommandResult executeCommand(SSHSessionPool pool, SSHTarget target, String command, boolean executeCommand, boolean isAdmin, int sshExecutionTimeInSeconds) {
+        return executeCommand(pool, null, target, command, executeCommand, isAdmin, sshExecutionTimeInSeconds);
+    }
+
+    /**
+     * As above, and shell commands also keep their logged-in shell in {@code shellPool} for the next
+     * command to the same host. A shell is only kept while its session stays in the session pool.
+     */
+    public static CommandResult executeCommand(SSHSessionPool pool, InteractiveShellPool shellPool, SSHTarget target, String command,
+                                               boolean executeCommand, boolean isAdmin, int sshExecutionTimeInSeconds) {
+        return executeCommand(pool, shellPool, target, command, executeCommand, isAdmin, false, sshExecutionTimeInSeconds);
+    }
+
+    /**
+     * As above; with {@code markerCompletion} shell commands on hosts with a POSIX shell finish as
+     * soon as the shell reports their exit code, see {@link JediTermSshExecutor#JediTermSshExecutor(InteractiveShellPool, boolean)}.
+     */
+    public static CommandResult executeCommand(SSHSessionPool pool, InteractiveShellPool shellPool, SSHTarget target, String command,
+                                               boolean executeCommand, boolean isAdmin, boolean markerCompletion,
+                                               int sshExecutionTimeInSeconds) {
+        Session session;
+        try {
+            session = pool.borrow(target);
+        } catch (SSHConnectException e) {
+            LOG.warn("Could not get a session for host " + target.getHost() + ": " + e.getReason());
+            CommandResult failed = new CommandResult(false, -1, "");
+            failed.setFailureReason(e.getReason());
+            return failed;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new CommandResult(false, -1, "");
+        }
+
+        CommandResult commandResult = null;
+        try {
+            commandResult = run(session, command, executeCommand, isAdmin, target.getPassword(), sshExecutionTimeInSeconds, null, shellPool,
+                    markerCompletion);
+            return commandResult;
+        } finally {
+            if (commandResult != null && commandResult.getResult()) {
+                pool.release(session);
+            } else {
+                pool.invalidate(session);
+            }
+        }
+    }
+
     public CommandResult call() throws Exception {
 
         try {
-            if(this.execChannel)
+            if(this.execChannel) {
+                if (this.listener != null)
+                    return SSHExecutor.streamCommand(this.session, this.command, this.isAdmin, this.listener);
                 return SSHExecutor.executeCommand(this.session, this.command, this.isAdmin,this.password);
-            return new JediTermSshExecutor().executeCommand(this.session,this.password, this.command, this.isAdmin);
+            }
+            return new JediTermSshExecutor(this.shellPool, this.markerCompletion).executeCommand(this.session,this.password, this.command, this.isAdmin, this.listener);
         } catch (Throwable e) {
             throw new RuntimeException(e);
         }
@@ -0,0 +1,110 @@
+package com.virima.jsch;
+
+import com.jcraft.jsch.JSchException;
+
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+
+/**
+ * Why a session could not be opened, in a form callers can branch on instead of a null session.
+ */
+public class SSHConnectException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    public enum Reason {
+        /** The host's circuit is open after repeated failures; nothing was sent on the network. */
+        CIRCUIT_OPEN(false),
+        /** The session pool had no free slot for this host within the borrow timeout. */
+        POOL_EXHAUSTED(false),
+        UNKNOWN_HOST(true),
+        CONNECT_TIMEOUT(true),
+        CONNECTION_REFUSED(true),
+        NO_ROUTE(true),
+        /** TCP connected but the SSH handshake broke off (reset, closed, no common algorithm). */
+        HANDSHAKE_FAILED(true),
+        AUTH_FAILED(false),
+        /** The private key could not be parsed or decrypted. */
+        KEY_ERROR(false),
+        OTHER(true);
+
+        private final boolean hostFailure;
+
+        Reason(boolean hostFailure) {
+            this.hostFailure = hostFailure;
+        }
+
+        /**
+         * True if the failure says something about the host being unreachable or unhealthy,
+         * and should therefore count towards its circuit breaker.
+         */
+        public boolean isHostFailure() {
+            return hostFailure;
+        }
+    }
+
+    private final Reason reason;
+    private final String host;
+    private final int port;
+    private final long retryAfterMillis;
+
+    public SSHConnectException(Reason reason, String host, int port, String message, long retryAfterMillis, Throwable cause) {
+        super(message, cause);
+        this.reason = reason;
+        this.host = host;
+        this.port = port;
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    /**
+     * Classifies a JSch connect failure, looking at the underlying socket exception where there is one.
+     */
+    public static SSHConnectException from(String host, int port, JSchException e) {
+        return new SSHConnectException(classify(e), host, port, e.getMessage(), 0, e);
+    }
+
+    static Reason classify(JSchException e) {
+        if (AuthMethodMemo.isAuthFailure(e)) {
+            return Reason.AUTH_FAILED;
+        }
+        for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+            if (cause instanceof UnknownHostException) return Reason.UNKNOWN_HOST;
+            if (cause instanceof SocketTimeoutException) return Reason.CONNECT_TIMEOUT;
+            if (cause instanceof NoRouteToHostException) return Reason.NO_ROUTE;
+            if (cause instanceof ConnectException) return Reason.CONNECTION_REFUSED;
+        }
+        String message = e.getMessage() == null ? "" : e.getMessage().toLowerCase();
+        if (message.contains("timeout")) return Reason.CONNECT_TIMEOUT;
+        if (message.contains("privatekey") || message.contains("private key")) return Reason.KEY_ERROR;
+        if (message.contains("connection reset") || message.contains("closed by foreign host")
+                || message.contains("algorithm negotiation fail") || message.contains("invalid server's version")) {
+            return Reason.HANDSHAKE_FAILED;
+        }
+        return Reason.OTHER;
+    }
+
+    public Reason getReason() {
+        return reason;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * For {@link Reason#CIRCUIT_OPEN}: how long until the host may be tried again. 0 otherwise.
+     */
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "SSHConnectException[" + reason + "] " + host + ":" + port + ": " + getMessage();
+    }
+}
@@ -6,17 +6,35 @@
 package com.virima.jsch;
 
 import com.jcraft.jsch.*;
-import org.apache.commons.io.FileUtils;
+import com.virima.utils.AsyncLog;
+import com.virima.utils.ComponentLog;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
-import java.util.UUID;
 import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
 
 
 public class SSHExecutor implements Callable<Session> {
     private static final String CLASSNAME = "SSHExecutor";
+    private static final ComponentLog LOG = AsyncLog.forComponent(CLASSNAME);
+    private static final long EXIT_STATUS_WAIT_MILLIS = 2000;
+    private static final String COMPRESSION_PROPOSAL = "zlib@openssh.com,zlib,none";
+    public static final int DEFAULT_MAX_STDERR_CHARS = 64 * 1024;
+    private static volatile int maxStderrChars = DEFAULT_MAX_STDERR_CHARS;
+    public static final int DEFAULT_SPILL_THRESHOLD_BYTES = 8 * 1024 * 1024;
+    private static volatile int spillThresholdBytes = DEFAULT_SPILL_THRESHOLD_BYTES;
+
+    static {
+        JSch.setLogger(new MyLogger());
+    }
+    private static final IdentityCache IDENTITY_CACHE = new IdentityCache();
+    private static final HostCircuitBreaker CIRCUIT_BREAKER = new HostCircuitBreaker();
+    private static final AuthMethodMemo AUTH_MEMO = new AuthMethodMemo();
+    private static volatile AlgorithmNegotiationCache algorithmCache = new AlgorithmNegotiationCache();
     String host;
     String userName;
     String password;
@@ -36,53 +54,120 @@ public class SSHExecutor implements Callable<Session> {
 
     public static Session getSshSession2(String host, String userName,
                                          String password, String privateKey, String passphrase, int port) {
+        try {
+            return openSession(host, userName, password, privateKey, passphrase, port);
+        } catch (SSHConnectException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Opens an authenticated session, failing fast with a typed reason instead of returning null.
+     * Hosts whose circuit is open are rejected without touching the network.
+     */
+    public static Session openSession(String host, String userName, String password, String privateKey,
+                                      String passphrase, int port) throws SSHConnectException {
+        return openSession(host, userName, password, privateKey, passphrase, port, false);
+    }
+
+    /**
+     * As above; with {@code compression} the session offers zlib@openssh.com and zlib ahead of
+     * none, so the server decides and hosts without zlib still connect.
+     */
+    public static Session openSession(String host, String userName, String password, String privateKey,
+                                      String passphrase, int port, boolean compression) throws SSHConnectException {
+        long retryAfter = CIRCUIT_BREAKER.tryAcquire(host, port);
+        if (retryAfter > 0) {
+            throw new SSHConnectException(SSHConnectException.Reason.CIRCUIT_OPEN, host, port,
+                    "Circuit open after repeated failures, retry in " + retryAfter + " ms", retryAfter, null);
+        }
+
+        try {
+            Session session = openSessionRememberingAuth(host, userName, password, privateKey, passphrase, port, compression);
+            CIRCUIT_BREAKER.onSuccess(host, port);
+            return session;
+        } catch (JSchException e) {
+            SSHConnectException failure = SSHConnectException.from(host, port, e);
+            if (failure.getReason().isHostFailure()) {
+                CIRCUIT_BREAKER.onFailure(host, port);
+            } else {
+                // The host answered, it just didn't like us
+                CIRCUIT_BREAKER.onSuccess(host, port);
+            }
+            throw failure;
+        } catch (RuntimeException e) {
+            CIRCUIT_BREAKER.onFailure(host, port);
+            throw e;
+        }
+    }
+
+    private static Session openSessionRememberingAuth(String host, String userName, String password, String privateKey,
+                                                      String passphrase, int port, boolean compression) throws JSchException {
+        String rememberedAuth = AUTH_MEMO.get(host, port, userName);
+        try {
+            return connect(host, userName, password, privateKey, passphrase, port, compression, rememberedAuth);
+        } catch (JSchException e) {
+            if (rememberedAuth == null || !AuthMethodMemo.isAuthFailure(e)) {
+                throw e;
+            }
+            // The method that used to work was refused: forget it and offer everything again
+            AUTH_MEMO.invalidate(host, port, userName);
+            LOG.warn("Remembered auth method '"+rememberedAuth+"' failed for "+host+", retrying with all methods");
+            return connect(host, userName, password, privateKey, passphrase, port, compression, null);
+        }
+    }
+
+    /**
+     * Opens and authenticates one session.
+     *
+     * @param preferredAuthentications auth methods to offer, or null for the full default list
+     */
+    private static Session connect(String host, String userName, String password, String privateKey,
+                                   String passphrase, int port, boolean compression,
+                                   String preferredAuthentications) throws JSchException {
         JSch jsch = new JSch();
 
-        JSch.setLogger(new MyLogger());
         Properties config = getProperties();
+        AlgorithmNegotiationCache algorithms = algorithmCache;
+        algorithms.apply(host, port, config);
+        if (compression) {
+            // zlib@openssh.com only starts after auth, so the handshake itself isn't slowed down
+            config.put("compression.s2c", COMPRESSION_PROPOSAL);
+            config.put("compression.c2s", COMPRESSION_PROPOSAL);
+        }
+        if (preferredAuthentications != null) {
+            config.put("PreferredAuthentications", preferredAuthentications);
+        }
 
         Session session;
-        String ppkFileLocation = null;
+        ConnectionTimings timings = new ConnectionTimings(host, port);
 
         try {
             session = jsch.getSession(userName, host);
             session.setConfig(config);
             session.setPort(port);
+            session.setLogger(timings.logger(JSch.getLogger()));
+            session.setSocketFactory(timings.socketFactory(30000));
+            session.setHostKeyRepository(timings.hostKeyRepository(jsch.getHostKeyRepository()));
 
             if (privateKey != null && !privateKey.isEmpty() && !privateKey.equalsIgnoreCase("unknown")){
-
-                privateKey = privateKey.replace("\r\n", "\n");
-                privateKey = privateKey.replace("\n", "\r\n");
-
-                String cwd = System.getProperty("user.dir") + File.separator + "temp";
-                if (!new File(cwd).exists())
-                    new File(cwd).mkdir();
-
-                ppkFileLocation = cwd + File.separator + UUID.randomUUID() + ".ppk";
-                try {
-                    FileUtils.writeStringToFile(new File(ppkFileLocation), privateKey, StandardCharsets.UTF_8);
-                } catch (IOException e) {
-                    e.printStackTrace();
-                    return null;
-                }
-                if(passphrase != null && !passphrase.isEmpty()){
-                    jsch.addIdentity(ppkFileLocation, passphrase);
-                } else {
-                    jsch.addIdentity(ppkFileLocation);
-                }
-
+                // Parsed and decrypted once per distinct key, straight from memory
+                jsch.addIdentity(IDENTITY_CACHE.getIdentity(privateKey, passphrase), null);
             } else {
                 UserInfo ui = new CustomUserInfo(password);
                 session.setUserInfo(ui);
                 session.setPassword(password);
             }
+            timings.connectStarted();
             session.connect(30000);
+            timings.connectFinished(true);
+            ConnectionTimings.attach(session, timings);
+            algorithms.record(host, port, config.getProperty("kex"), timings);
+            AUTH_MEMO.record(host, port, userName, timings.getAuthMethod());
         } catch (JSchException e) {
-            System.err.println("ERROR: ["+CLASSNAME+"] "+e);
-            return null;
-        } finally {
-            if(ppkFileLocation != null)
-                FileUtils.deleteQuietly(new File(ppkFileLocation));
+            timings.connectFinished(false);
+            LOG.error(e+" ("+timings+")");
+            throw e;
         }
         return session;
     }
@@ -111,34 +196,12 @@ public class SSHExecutor implements Callable<Session> {
         config.put("server_host_key", "ssh-ed25519,ssh-rsa,ecdsa-sha2-nistp256,ecdsa-sha2-nistp384,ecdsa-sha2-nistp521,rsa-sha2-256,rsa-sha2-512");
 
 
-        config.put("kex", "ecdh-sha2-nistp256,ecdh-sha2-nistp384,ecdh-sha2-nistp521,diffie-hellman-group14-sha1,diffie-hellman-group-exchange-sha256,diffie-hellman-group-exchange-sha1,diffie-hellman-group1-sha1,curve25519-sha256,diffie-hellman-group14-sha256");
+        // Fastest first; the SHA-1 groups stay at the end for old switches that only speak those.
+        // AlgorithmNegotiationCache reorders this per host once it has seen a handshake.
+        config.put("kex", "curve25519-sha256,ecdh-sha2-nistp256,ecdh-sha2-nistp384,ecdh-sha2-nistp521,diffie-hellman-group14-sha256,diffie-hellman-group-exchange-sha256,diffie-hellman-group14-sha1,diffie-hellman-group-exchange-sha1,diffie-hellman-group1-sha1");
         return config;
     }
 
-    private static File createKeyFile(String var0, String var1) {
-        String var2 = System.getProperty("user.dir") + File.separator + "temp" + File.separator + "ssh_privatekey.ppk";
-
-        try {
-            var0 = var0.replaceAll("\r\n", "\n");
-            var0 = var0.replaceAll("\n", "\r\n");
-            String var3 = System.getProperty("user.dir") + File.separator + "temp";
-            if (!(new File(var3)).exists()) {
-                (new File(var3)).mkdir();
-            }
-
-            var2 = var3 + File.separator + "ssh_privatekey.pem";
-            FileUtils.writeStringToFile(new File(var2), var0);
-            if (var1 != null) {
-                var1.equals("");
-            }
-
-            return new File(var2);
-        } catch (Exception var4) {
-            var4.printStackTrace();
-            return null;
-        }
-    }
-
     public static Session getSshSessionForHost(String host, String userName, String password, String privateKey, String passphrase, String portStr) {
         // Use the existing getSshSession2 method which already uses JSch
         int port = Integer.parseInt(portStr);
@@ -146,85 +209,257 @@ public class SSHExecutor implements Callable<Session> {
     }
 
     public static CommandResult executeCommand(Session session, String command, boolean isAdmin,String password) {
-
-        int exitCode = -1;
-        boolean result;
-        StringBuilder output = new StringBuilder();
-        Channel channel = null;
         try {
+            return executeCommand(session, command, isAdmin);
+        } catch (JSchException e) {
+            LOG.error("Could not open exec channel on " + session.getHost(), e);
+            CommandResult commandResult = new CommandResult(true, -1, "");
+            commandResult.setConnectionTimings(ConnectionTimings.of(session));
+            return commandResult;
+        }
+    }
 
-            channel = session.openChannel("exec");
-
-            ((ChannelExec) channel).setCommand(command);
-
-
-
-
-
-            channel.setInputStream(null);
+    /**
+     * Runs the commands one after another as a single script over one exec channel, saving a
+     * channel open per command. Needs a POSIX sh on the host; see {@link ExecBatch}.
+     * Results are in command order; a command the script never reached has result false.
+     */
+    public static List<CommandResult> executeBatch(Session session, List<String> commands, boolean isAdmin) {
+        try {
+            return new ExecBatch(commands, isAdmin).run(session, spillThresholdBytes, maxStderrChars);
+        } catch (JSchException e) {
+            LOG.error("Could not open exec channel on " + session.getHost(), e);
+            List<CommandResult> failed = new ArrayList<>();
+            for (int i = 0; i < commands.size(); i++) {
+                CommandResult commandResult = new CommandResult(false, -1, "");
+                commandResult.setConnectionTimings(ConnectionTimings.of(session));
+                failed.add(commandResult);
+            }
+            return failed;
+        }
+    }
 
+    /**
+     * Runs one command over a new exec channel and hands its output to the listener as it
+     * arrives instead of collecting it; the result's output is empty.
+     */
+    public static CommandResult streamCommand(Session session, String command, boolean isAdmin, OutputListener listener) {
+        try {
+            return runExec(session, command, isAdmin, null, null, null, listener);
+        } catch (JSchException e) {
+            LOG.error("Could not open exec channel on " + session.getHost(), e);
+            CommandResult commandResult = new CommandResult(true, -1, "");
+            commandResult.setConnectionTimings(ConnectionTimings.of(session));
+            return commandResult;
+        }
+    }
 
+    /**
+     * Runs one command over a new exec channel.
+     *
+     * @throws JSchException if the channel could not be opened; a {@link ChannelRefusedException}
+     *                       if the server answered the open with a refusal, e.g. because its
+     *                       per-connection channel limit was reached. Failures after that are
+     *                       reported in the result as before
+     */
+    static CommandResult executeCommand(Session session, String command, boolean isAdmin) throws JSchException {
+        SpillableOutput output = new SpillableOutput(spillThresholdBytes);
+        CommandResult commandResult = runExec(session, command, isAdmin, null, output, null, chunk -> { });
+        commandResult.setOutputBuffer(output);
+        return commandResult;
+    }
 
+    /**
+     * Runs the command and copies raw stdout bytes into {@code collector} or, when that is null,
+     * streams decoded text to the listener. Stderr likewise goes raw into {@code stderrCollector},
+     * or else into the result's capped error output and the listener's onError. Collectors are
+     * closed once their stream ends.
+     *
+     * @param input sent to the command's stdin, followed by EOF; null for no stdin
+     */
+    static CommandResult runExec(Session session, String command, boolean isAdmin, byte[] input, OutputStream collector,
+                                 OutputStream stderrCollector, OutputListener listener) throws JSchException {
 
+        int exitCode = -1;
+        long channelOpenMillis;
+        long commandStart;
 
-            ((ChannelExec) channel).setErrStream(System.err);
+        ChannelExec channel = (ChannelExec) session.openChannel("exec");
+        InputStream in;
+        InputStream err;
+        try {
+            channel.setCommand(command);
+            channel.setInputStream(input == null ? null : new ByteArrayInputStream(input));
             if(isAdmin){
-                System.out.println("This command requires Admin privilage so setPty(true)");
-                ((ChannelExec) channel).setPty(true);
+                LOG.debug("This command requires Admin privilage so setPty(true)");
+                channel.setPty(true);
             }
 
+            in = channel.getInputStream();
+            err = channel.getExtInputStream();
 
-            InputStream in = channel.getInputStream();
-
+            long channelOpenStart = System.currentTimeMillis();
             channel.connect();
+            channelOpenMillis = System.currentTimeMillis() - channelOpenStart;
+            commandStart = System.currentTimeMillis();
+        } catch (JSchException | IOException e) {
+            int exitStatus = channel.getExitStatus();
+            channel.disconnect();
+            throw openFailure(exitStatus, e);
+        }
 
-            byte[] tmp = new byte[1024];
-            while (true) {
-                while (in.available() > 0) {
-                    int i = in.read(tmp, 0, 1024);
-                    if (i < 0)
-                        break;
-                    output.append(new String(tmp, 0, i));
-                }
-                if (channel.isClosed()) {
+        // Stderr gets its own reader, so a chatty stderr never stalls stdout and no two commands
+        // share a stream. Its pipe is closed by disconnect(), which ends the reader.
+        BoundedText stderr = new BoundedText(maxStderrChars);
+        Thread stderrReader = Thread.ofVirtual()
+                .name("stderr-" + session.getHost())
+                .start(() -> readStderr(err, stderrCollector, stderr, listener));
 
-                    exitCode = channel.getExitStatus();
-                    break;
+        // read() blocks until data arrives and returns -1 once the server sends EOF, so output
+        // is picked up as soon as it is written
+        Exception failure = null;
+        try {
+            if (collector != null) {
+                // Collected output stays raw bytes; it is only decoded if someone asks for text
+                try (collector) {
+                    in.transferTo(collector);
+                }
+            } else {
+                // The reader keeps multi-byte characters that straddle two packets together
+                try (Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8)) {
+                    char[] tmp = new char[8192];
+                    int i;
+                    while ((i = reader.read(tmp, 0, tmp.length)) >= 0) {
+                        if (i > 0) {
+                            listener.onOutput(new String(tmp, 0, i));
+                        }
+                    }
                 }
-                sleepThread();
             }
             in.close();
+            exitCode = awaitExitStatus(channel);
         } catch (Exception eee) {
-            Thread.currentThread().interrupt();
-            eee.printStackTrace();
+            failure = eee;
+            LOG.error("Exec command failed on " + session.getHost(), eee);
         }
         finally
         {
-            if(channel!=null)
+            try
             {
-                try
-                {
-                    channel.disconnect();
-                }
-                catch(Exception e)
-                {
-                    e.printStackTrace();
+                channel.disconnect();
+            }
+            catch(Exception e)
+            {
+                LOG.warn("Could not disconnect channel", e);
+            }
+        }
+
+        // Joined before the interrupt is restored, so an interrupted command still gets its stderr
+        try {
+            stderrReader.join(EXIT_STATUS_WAIT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure instanceof InterruptedException) {
+            Thread.currentThread().interrupt();
+        }
+
+        CommandResult commandResult = new CommandResult(failure == null, exitCode, "");
+        commandResult.setErrorOutput(stderr.toString());
+        commandResult.setErrorTruncated(stderr.isTruncated());
+        commandResult.setConnectionTimings(ConnectionTimings.of(session));
+        commandResult.setChannelOpenMillis(channelOpenMillis);
+        commandResult.setDurationMillis(System.currentTimeMillis() - commandStart);
+        return commandResult;
+    }
+
+    /**
+     * What a failed channel open is reported as. JSch keeps the reason code of
+     * SSH_MSG_CHANNEL_OPEN_FAILURE as the channel's exit status; a timeout or a refused exec
+     * request leaves it at -1.
+     */
+    static JSchException openFailure(int exitStatus, Exception e) {
+        if (exitStatus > 0) {
+            return new ChannelRefusedException(exitStatus, e);
+        }
+        return e instanceof JSchException ? (JSchException) e : new JSchException(e.getMessage(), e);
+    }
+
+    private static void readStderr(InputStream err, OutputStream collector, BoundedText stderr, OutputListener listener) {
+        if (collector != null) {
+            try (collector) {
+                err.transferTo(collector);
+            } catch (Exception e) {
+                LOG.debug(() -> "Stderr reader stopped: " + e);
+            }
+            return;
+        }
+        try (Reader reader = new InputStreamReader(err, StandardCharsets.UTF_8)) {
+            char[] tmp = new char[4096];
+            int i;
+            while ((i = reader.read(tmp, 0, tmp.length)) >= 0) {
+                if (i > 0) {
+                    stderr.append(tmp, 0, i);
+                    listener.onError(new String(tmp, 0, i));
                 }
             }
+        } catch (Exception e) {
+            LOG.debug(() -> "Stderr reader stopped: " + e);
         }
+    }
 
-        result = true;
+    public static int getSpillThresholdBytes() {
+        return spillThresholdBytes;
+    }
 
-        return new CommandResult(true, exitCode, output.toString());
+    /**
+     * Exec output up to this many bytes stays on the heap; anything larger is spilled to a
+     * memory-mapped temp file (see {@link CommandResult#openOutputStream()}).
+     */
+    public static void setSpillThresholdBytes(int thresholdBytes) {
+        if (thresholdBytes < 0) {
+            throw new IllegalArgumentException("thresholdBytes must be >= 0");
+        }
+        spillThresholdBytes = thresholdBytes;
     }
 
-    private static void sleepThread() {
-        try {
-            Thread.sleep(1000);
-        } catch (Exception ee) {
-            Thread.currentThread().interrupt();
-            ee.printStackTrace();
+    /**
+     * Replaces the in-memory algorithm cache, e.g. with
+     * {@code new AlgorithmNegotiationCache(AlgorithmNegotiationCache.defaultFile())} to keep what
+     * was learned across restarts.
+     */
+    public static void setAlgorithmCache(AlgorithmNegotiationCache cache) {
+        if (cache == null) {
+            throw new IllegalArgumentException("cache must not be null");
         }
+        algorithmCache = cache;
+    }
+
+    public static int getMaxStderrChars() {
+        return maxStderrChars;
+    }
+
+    /**
+     * Caps how much stderr each exec command keeps; the rest is counted and marked as truncated.
+     */
+    public static void setMaxStderrChars(int maxChars) {
+        if (maxChars < 0) {
+            throw new IllegalArgumentException("maxChars must be >= 0");
+        }
+        maxStderrChars = maxChars;
+    }
+
+    /**
+     * Waits for the exit status after EOF. Servers send exit-status and close right behind EOF,
+     * so this normally returns on the first or second check; the cap only matters for servers
+     * that never report one.
+     */
+    private static int awaitExitStatus(ChannelExec channel) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(EXIT_STATUS_WAIT_MILLIS);
+        while (channel.getExitStatus() == -1 && !channel.isClosed() && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        return channel.getExitStatus();
     }
 
 
@@ -233,13 +468,28 @@ public class SSHExecutor implements Callable<Session> {
         return var1;
     }
 
+    /**
+     * Routes JSch's own logging into the "JSch" component, so packet-level messages are only
+     * built and written when that component's level asks for them.
+     */
     public static class MyLogger implements com.jcraft.jsch.Logger {
+        private static final ComponentLog JSCH_LOG = AsyncLog.forComponent("JSch");
+
         public boolean isEnabled(int level) {
-            return true;
+            return JSCH_LOG.isEnabled(toLevel(level));
         }
 
         public void log(int level, String message) {
-            System.out.println("JSch [" + level + "]: " + message);
+            JSCH_LOG.log(toLevel(level), message);
+        }
+
+        private static AsyncLog.Level toLevel(int level) {
+            return switch (level) {
+                case DEBUG -> AsyncLog.Level.DEBUG;
+                case INFO -> AsyncLog.Level.INFO;
+                case WARN -> AsyncLog.Level.WARN;
+                default -> AsyncLog.Level.ERROR;
+            };
         }
     }
 }
@@ -0,0 +1,233 @@
+package com.virima.jsch;
+
+import com.jcraft.jsch.Session;
+import com.virima.utils.AsyncLog;
+import com.virima.utils.ComponentLog;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pool of authenticated SSH sessions, keyed by host, port, user and credential fingerprint.
+ * <p>
+ * {@link #borrow} hands out an idle session for the key if there is one, else connects and
+ * authenticates a new one; at most {@code maxSessionsPerKey} are out per key, further borrowers
+ * wait up to the borrow timeout. {@link #release} returns a session for reuse, {@link #invalidate}
+ * disconnects it. Idle sessions are disconnected after the idle timeout, and each one is probed
+ * before it is handed out again.
+ * <p>
+ * Usage:
+ * <pre>
+ * Session session = pool.borrow(target);
+ * try {
+ *     ... run commands ...
+ *     pool.release(session);
+ * } catch (Exception e) {
+ *     pool.invalidate(session);
+ * }
+ * </pre>
+ */
+public final class SSHSessionPool implements AutoCloseable {
+    private static final String CLASSNAME = "SSHSessionPool";
+    private static final ComponentLog LOG = AsyncLog.forComponent(CLASSNAME);
+
+    public static final int DEFAULT_MAX_SESSIONS_PER_KEY = 4;
+    public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 5 * 60 * 1000L;
+    public static final long DEFAULT_BORROW_TIMEOUT_MILLIS = 60 * 1000L;
+
+    private final int maxSessionsPerKey;
+    private final long idleTimeoutMillis;
+    private final long borrowTimeoutMillis;
+
+    private final Map<String, Partition> partitions = new ConcurrentHashMap<>();
+    // Session does not override equals/hashCode, so this is keyed by identity
+    private final Map<Session, Partition> leased = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService evictor;
+    private volatile boolean closed;
+
+    public SSHSessionPool() {
+        this(DEFAULT_MAX_SESSIONS_PER_KEY, DEFAULT_IDLE_TIMEOUT_MILLIS, DEFAULT_BORROW_TIMEOUT_MILLIS);
+    }
+
+    public SSHSessionPool(int maxSessionsPerKey, long idleTimeoutMillis, long borrowTimeoutMillis) {
+        if (maxSessionsPerKey < 1) {
+            throw new IllegalArgumentException("maxSessionsPerKey must be >= 1");
+        }
+        this.maxSessionsPerKey = maxSessionsPerKey;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.borrowTimeoutMillis = borrowTimeoutMillis;
+
+        this.evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "ssh-session-pool-evictor");
+            t.setDaemon(true);
+            return t;
+        });
+        long sweepInterval = Math.max(1000L, idleTimeoutMillis / 2);
+        this.evictor.scheduleWithFixedDelay(this::evictIdle, sweepInterval, sweepInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Borrows a connected session for the target, reusing an idle one when it passes the liveness probe.
+     *
+     * @throws SSHConnectException if no session could be established, or with
+     *         {@link SSHConnectException.Reason#POOL_EXHAUSTED} if the per-key limit stayed exhausted for the borrow timeout
+     */
+    public Session borrow(SSHTarget target) throws SSHConnectException, InterruptedException {
+        if (closed) {
+            throw new IllegalStateException("Session pool is closed");
+        }
+        Partition partition = partitions.computeIfAbsent(target.getPoolKey(), k -> new Partition(maxSessionsPerKey));
+
+        if (!partition.permits.tryAcquire(borrowTimeoutMillis, TimeUnit.MILLISECONDS)) {
+            throw new SSHConnectException(SSHConnectException.Reason.POOL_EXHAUSTED, target.getHost(), target.getPort(),
+                    "[" + CLASSNAME + "] No free session within " + borrowTimeoutMillis + " ms", 0, null);
+        }
+
+        Session session = null;
+        try {
+            IdleSession idle;
+            while ((idle = partition.idle.pollFirst()) != null) {
+                if (isAlive(idle.session)) {
+                    session = idle.session;
+                    break;
+                }
+                disconnectQuietly(idle.session);
+            }
+
+            if (session == null) {
+                session = SSHExecutor.openSession(target.getHost(), target.getUserName(), target.getPassword(),
+                        target.getPrivateKey(), target.getPassphrase(), target.getPort(), target.isCompression());
+            }
+        } finally {
+            if (session == null) {
+                partition.permits.release();
+            }
+        }
+
+        leased.put(session, partition);
+        return session;
+    }
+
+    /**
+     * Returns a healthy session to the pool so the next borrower can reuse it.
+     */
+    public void release(Session session) {
+        if (session == null) {
+            return;
+        }
+        Partition partition = leased.remove(session);
+        if (partition == null) {
+            disconnectQuietly(session);
+            return;
+        }
+        if (!closed && session.isConnected()) {
+            partition.idle.offerFirst(new IdleSession(session, System.currentTimeMillis()));
+        } else {
+            disconnectQuietly(session);
+        }
+        partition.permits.release();
+    }
+
+    /**
+     * Discards a session that is broken or left in an unknown state (e.g. a command timed out on it).
+     */
+    public void invalidate(Session session) {
+        if (session == null) {
+            return;
+        }
+        Partition partition = leased.remove(session);
+        disconnectQuietly(session);
+        if (partition != null) {
+            partition.permits.release();
+        }
+    }
+
+    /**
+     * Disconnects sessions that have been idle longer than the idle timeout.
+     */
+    void evictIdle() {
+        long cutoff = System.currentTimeMillis() - idleTimeoutMillis;
+        for (Partition partition : partitions.values()) {
+            for (IdleSession idle : partition.idle) {
+                if (idle.idleSince < cutoff && partition.idle.removeFirstOccurrence(idle)) {
+                    disconnectQuietly(idle.session);
+                }
+            }
+        }
+    }
+
+    public int getIdleCount() {
+        int count = 0;
+        for (Partition partition : partitions.values()) {
+            count += partition.idle.size();
+        }
+        return count;
+    }
+
+    public int getLeasedCount() {
+        return leased.size();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        evictor.shutdownNow();
+        for (Partition partition : partitions.values()) {
+            IdleSession idle;
+            while ((idle = partition.idle.pollFirst()) != null) {
+                disconnectQuietly(idle.session);
+            }
+        }
+        partitions.clear();
+    }
+
+    /**
+     * Best-effort liveness probe: the transport must still be up and accept a keep-alive request.
+     * The keep-alive is not waited for, so this only catches a session whose connection is already
+     * known to be gone (closed, or reset so that the write fails); a peer that silently went away
+     * passes, and the session fails on its first channel open instead and is invalidated then.
+     */
+    private static boolean isAlive(Session session) {
+        if (!session.isConnected()) {
+            return false;
+        }
+        try {
+            session.sendKeepAliveMsg();
+            return session.isConnected();
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private static void disconnectQuietly(Session session) {
+        try {
+            session.disconnect();
+        } catch (Exception e) {
+            LOG.warn("Could not disconnect session", e);
+        }
+    }
+
+    private static class Partition {
+        final Semaphore permits;
+        final ConcurrentLinkedDeque<IdleSession> idle = new ConcurrentLinkedDeque<>();
+
+        Partition(int maxSessions) {
+            this.permits = new Semaphore(maxSessions, true);
+        }
+    }
+
+    private static class IdleSession {
+        final Session session;
+        final long idleSince;
+
+        IdleSession(Session session, long idleSince) {
+            this.session = session;
+            this.idleSince = idleSince;
+        }
+    }
+}
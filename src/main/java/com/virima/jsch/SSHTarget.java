@@ -0,0 +1,135 @@
+package com.virima.jsch;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Objects;
+
+/**
+ * Connection details for one SSH host: where to connect and which credentials to use.
+ * <p>
+ * Two targets that share host, port, user and credential fingerprint can share
+ * the same authenticated session.
+ */
+public class SSHTarget {
+    private final String host;
+    private final int port;
+    private final String userName;
+    private final String password;
+    private final String privateKey;
+    private final String passphrase;
+    private final boolean compression;
+    private volatile String credentialFingerprint;
+
+    public SSHTarget(String host, int port, String userName, String password, String privateKey, String passphrase) {
+        this(host, port, userName, password, privateKey, passphrase, false);
+    }
+
+    /**
+     * @param compression offer zlib transport compression; worth it for bulk text over slow links,
+     *                    a waste of CPU on a fast LAN
+     */
+    public SSHTarget(String host, int port, String userName, String password, String privateKey, String passphrase,
+                     boolean compression) {
+        this.host = host;
+        this.port = port;
+        this.userName = userName;
+        this.password = password;
+        this.privateKey = privateKey;
+        this.passphrase = passphrase;
+        this.compression = compression;
+    }
+
+    /**
+     * The same target with compression switched on or off, e.g. for every host of a remote site.
+     */
+    public SSHTarget withCompression(boolean compression) {
+        return compression == this.compression ? this
+                : new SSHTarget(host, port, userName, password, privateKey, passphrase, compression);
+    }
+
+    public String getHost() {
+        return this.host;
+    }
+
+    public int getPort() {
+        return this.port;
+    }
+
+    public String getUserName() {
+        return this.userName;
+    }
+
+    public String getPassword() {
+        return this.password;
+    }
+
+    public String getPrivateKey() {
+        return this.privateKey;
+    }
+
+    public String getPassphrase() {
+        return this.passphrase;
+    }
+
+    public boolean isCompression() {
+        return this.compression;
+    }
+
+    /**
+     * SHA-256 over password, private key and passphrase, so pool keys never hold the secrets themselves.
+     */
+    public String getCredentialFingerprint() {
+        String fingerprint = this.credentialFingerprint;
+        if (fingerprint == null) {
+            fingerprint = fingerprint(this.password, this.privateKey, this.passphrase);
+            this.credentialFingerprint = fingerprint;
+        }
+        return fingerprint;
+    }
+
+    /**
+     * SHA-256 over the given secrets as hex, so keys can tell credentials apart without holding them.
+     */
+    static String fingerprint(String... secrets) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (String part : secrets) {
+                digest.update((part == null ? "" : part).getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    /**
+     * Key identifying sessions that are interchangeable for this target.
+     */
+    public String getPoolKey() {
+        return this.userName + "@" + this.host + ":" + this.port + "#" + getCredentialFingerprint() + (this.compression ? "#z" : "");
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof SSHTarget)) return false;
+        SSHTarget that = (SSHTarget) o;
+        return this.port == that.port
+                && this.compression == that.compression
+                && Objects.equals(this.host, that.host)
+                && Objects.equals(this.userName, that.userName)
+                && getCredentialFingerprint().equals(that.getCredentialFingerprint());
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(this.host, this.port, this.userName, getCredentialFingerprint(), this.compression);
+    }
+
+    public String toString() {
+        return this.userName + "@" + this.host + ":" + this.port;
+    }
+}
@@ -0,0 +1,55 @@
+package com.virima.jsch;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Collects a shell command's output line by line as lines scroll off the emulated screen.
+ * <p>
+ * The screen only holds the last 24 lines; everything before that goes to JediTerm's history.
+ * The processor hands each history line over once and drops it from the history (see
+ * {@link JediTermSshExecutor.JediTermProcessor#startStreaming}), so neither the history nor
+ * this collector ever re-reads old lines. The lines go into a {@link SpillableOutput}, so a long
+ * output spills to disk like exec output does. At the end the cleaned screen is added as the tail.
+ */
+final class ScrollbackCollector implements OutputListener {
+    private final SpillableOutput output;
+    private boolean empty = true;
+
+    ScrollbackCollector(int spillThresholdBytes) {
+        this.output = new SpillableOutput(spillThresholdBytes);
+    }
+
+    /**
+     * The processor delivers one line per call, with its line break.
+     */
+    @Override
+    public void onOutput(String chunk) {
+        add(chunk.endsWith("\n") ? chunk.substring(0, chunk.length() - 1) : chunk);
+    }
+
+    /**
+     * Adds text as the next line(s). Line breaks go between lines, not after the last one, so
+     * the result reads like the trimmed screen output did before.
+     */
+    void add(String text) {
+        try {
+            if (!empty) {
+                output.write('\n');
+            }
+            output.write(text.getBytes(StandardCharsets.UTF_8));
+            empty = false;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Ends collecting; the output is ready to be read.
+     */
+    SpillableOutput finish() throws IOException {
+        output.close();
+        return output;
+    }
+}
@@ -0,0 +1,346 @@
+package com.virima.jsch;
+
+import com.virima.utils.AsyncLog;
+import com.virima.utils.ComponentLog;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Collects a command's output bytes in memory up to a threshold, then spills to a temp file.
+ * <p>
+ * Output up to the threshold stays on the heap. Larger output is written to the temp file as it
+ * arrives and, once {@link #close()}d, read back through a read-only memory mapping that the OS
+ * pages in on demand. The temp file is unlinked at close; the mapping keeps the data reachable
+ * until this object is garbage collected, so callers never have to clean up.
+ */
+final class SpillableOutput extends OutputStream {
+    private static final String CLASSNAME = "SpillableOutput";
+    private static final ComponentLog LOG = AsyncLog.forComponent(CLASSNAME);
+
+    // A single mapping is limited to 2 GB, so bigger spills are mapped in pieces
+    private static final int SEGMENT_BYTES = 1 << 30;
+    private static final int SEGMENT_CHARS = SEGMENT_BYTES / Character.BYTES;
+
+    private final int threshold;
+    private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+    private Path file;
+    private OutputStream fileOut;
+    private long size;
+    private boolean closed;
+
+    // Set by close(): exactly one of these holds the data
+    private byte[] bytes;
+    private ByteBuffer[] segments;
+    // The last chars() view of spilled output and the charset it was decoded with
+    private Charset charsCharset;
+    private CharSequence chars;
+
+    SpillableOutput(int threshold) {
+        this.threshold = threshold;
+    }
+
+    /**
+     * An already closed in-memory output holding these bytes.
+     */
+    static SpillableOutput wrap(byte[] data) {
+        SpillableOutput output = new SpillableOutput(Integer.MAX_VALUE);
+        output.memory = null;
+        output.bytes = data;
+        output.size = data.length;
+        output.closed = true;
+        return output;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Output already closed");
+        }
+        if (fileOut == null && memory.size() + (long) len > threshold) {
+            spill();
+        }
+        if (fileOut != null) {
+            fileOut.write(b, off, len);
+        } else {
+            memory.write(b, off, len);
+        }
+        size += len;
+    }
+
+    private void spill() throws IOException {
+        file = Files.createTempFile("ssh-output-", ".tmp");
+        fileOut = new BufferedOutputStream(Files.newOutputStream(file), 64 * 1024);
+        memory.writeTo(fileOut);
+        memory = null;
+        LOG.debug(() -> "Output passed " + threshold + " bytes, spilling to " + file);
+    }
+
+    /**
+     * Ends writing. In-memory output is trimmed to size; spilled output is mapped read-only.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (fileOut == null) {
+            bytes = memory.toByteArray();
+            memory = null;
+            return;
+        }
+        fileOut.close();
+        segments = map(file, size, SEGMENT_BYTES);
+        unlink(file);
+    }
+
+    long size() {
+        return size;
+    }
+
+    boolean isSpilled() {
+        return segments != null;
+    }
+
+    /**
+     * The raw bytes, read straight from memory or from the mapping.
+     */
+    InputStream openStream() {
+        checkClosed();
+        if (bytes != null) {
+            return new ByteArrayInputStream(bytes);
+        }
+        return new SegmentInputStream(segments);
+    }
+
+    /**
+     * Copies {@code length} bytes starting at {@code position}.
+     */
+    byte[] read(long position, int length) {
+        checkClosed();
+        if (position < 0 || length < 0 || position + length > size) {
+            throw new IndexOutOfBoundsException("position " + position + ", length " + length + ", size " + size);
+        }
+        byte[] copy = new byte[length];
+        if (bytes != null) {
+            System.arraycopy(bytes, (int) position, copy, 0, length);
+            return copy;
+        }
+        int copied = 0;
+        while (copied < length) {
+            long at = position + copied;
+            ByteBuffer segment = segments[(int) (at / SEGMENT_BYTES)];
+            int offset = (int) (at % SEGMENT_BYTES);
+            int n = Math.min(length - copied, segment.limit() - offset);
+            segment.get(offset, copy, copied, n);
+            copied += n;
+        }
+        return copy;
+    }
+
+    /**
+     * Decodes everything into one String. For spilled output this does put it all on the heap;
+     * prefer {@link #chars(Charset)} or {@link #openStream()} there.
+     */
+    String decode(Charset charset) {
+        checkClosed();
+        if (bytes != null) {
+            return new String(bytes, charset);
+        }
+        StringBuilder text = new StringBuilder();
+        try (Reader reader = new InputStreamReader(openStream(), charset)) {
+            char[] buffer = new char[8192];
+            int n;
+            while ((n = reader.read(buffer)) >= 0) {
+                text.append(buffer, 0, n);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return text.toString();
+    }
+
+    /**
+     * A character view of the output. Spilled output is decoded into a second, UTF-16 temp file
+     * that is mapped as well, so random access by index never loads the output into the heap. The
+     * view is kept and handed out again until a different charset is asked for.
+     */
+    CharSequence chars(Charset charset) {
+        checkClosed();
+        if (bytes != null) {
+            return new String(bytes, charset);
+        }
+        if (!charset.equals(charsCharset)) {
+            // The old view's mapping goes once it is no longer referenced
+            chars = null;
+            chars = decodeToFile(charset);
+            charsCharset = charset;
+        }
+        return chars;
+    }
+
+    private CharSequence decodeToFile(Charset charset) {
+        Path charFile = null;
+        try {
+            charFile = Files.createTempFile("ssh-output-", ".chars");
+            long length = 0;
+            try (Reader reader = new InputStreamReader(openStream(), charset);
+                 FileChannel out = FileChannel.open(charFile, StandardOpenOption.WRITE)) {
+                char[] buffer = new char[8192];
+                ByteBuffer encoded = ByteBuffer.allocate(buffer.length * Character.BYTES);
+                int n;
+                while ((n = reader.read(buffer)) >= 0) {
+                    encoded.clear();
+                    encoded.asCharBuffer().put(buffer, 0, n);
+                    encoded.limit(n * Character.BYTES);
+                    while (encoded.hasRemaining()) {
+                        out.write(encoded);
+                    }
+                    length += n;
+                }
+            }
+            if (length > Integer.MAX_VALUE) {
+                unlink(charFile);
+                throw new IllegalStateException("Output of " + length + " characters is too long for a CharSequence");
+            }
+            ByteBuffer[] charSegments = map(charFile, length * Character.BYTES, SEGMENT_CHARS * Character.BYTES);
+            unlink(charFile);
+            CharBuffer[] views = new CharBuffer[charSegments.length];
+            for (int i = 0; i < views.length; i++) {
+                views[i] = charSegments[i].asCharBuffer();
+            }
+            return new SegmentedChars(views, (int) length);
+        } catch (IOException e) {
+            if (charFile != null) {
+                unlink(charFile);
+            }
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void checkClosed() {
+        if (!closed) {
+            throw new IllegalStateException("Output is still being written");
+        }
+    }
+
+    private static ByteBuffer[] map(Path path, long length, int segmentSize) throws IOException {
+        int count = (int) Math.max(1, (length + segmentSize - 1) / segmentSize);
+        ByteBuffer[] mapped = new ByteBuffer[count];
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            for (int i = 0; i < count; i++) {
+                long position = (long) i * segmentSize;
+                mapped[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(segmentSize, length - position));
+            }
+        }
+        return mapped;
+    }
+
+    private static void unlink(Path path) {
+        // Unix keeps mapped pages after unlink; Windows refuses while mapped, so leave it for exit
+        try {
+            Files.delete(path);
+        } catch (IOException e) {
+            path.toFile().deleteOnExit();
+        }
+    }
+
+    private static final class SegmentInputStream extends InputStream {
+        private final ByteBuffer[] segments;
+        private int current;
+
+        SegmentInputStream(ByteBuffer[] segments) {
+            this.segments = new ByteBuffer[segments.length];
+            for (int i = 0; i < segments.length; i++) {
+                this.segments[i] = segments[i].duplicate();
+            }
+        }
+
+        @Override
+        public int read() {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            while (current < segments.length && !segments[current].hasRemaining()) {
+                current++;
+            }
+            if (current == segments.length) {
+                return -1;
+            }
+            int n = Math.min(len, segments[current].remaining());
+            segments[current].get(b, off, n);
+            return n;
+        }
+    }
+
+    private static final class SegmentedChars implements CharSequence {
+        private final CharBuffer[] segments;
+        private final int length;
+
+        SegmentedChars(CharBuffer[] segments, int length) {
+            this.segments = segments;
+            this.length = length;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (index < 0 || index >= length) {
+                throw new IndexOutOfBoundsException(index);
+            }
+            return segments[index / SEGMENT_CHARS].get(index % SEGMENT_CHARS);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            if (start < 0 || end > length || start > end) {
+                throw new IndexOutOfBoundsException("start " + start + ", end " + end + ", length " + length);
+            }
+            if (start == end) {
+                return "";
+            }
+            int segment = start / SEGMENT_CHARS;
+            if (segment == (end - 1) / SEGMENT_CHARS) {
+                int offset = segment * SEGMENT_CHARS;
+                return segments[segment].subSequence(start - offset, end - offset);
+            }
+            StringBuilder text = new StringBuilder(end - start);
+            for (int i = start; i < end; i++) {
+                text.append(charAt(i));
+            }
+            return text;
+        }
+
+        @Override
+        public String toString() {
+            return subSequence(0, length).toString();
+        }
+    }
+}
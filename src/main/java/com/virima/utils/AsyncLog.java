@@ -0,0 +1,187 @@
+package com.virima.utils;
+
+import java.io.PrintStream;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Asynchronous log sink with per-component levels.
+ * <p>
+ * Callers only pay for a level check and a non-blocking enqueue into a bounded ring buffer;
+ * a single background thread formats and writes the entries in batches. If the buffer is
+ * full the entry is dropped and counted, so a logging burst never stalls an SSH worker.
+ * <p>
+ * Levels are read from system properties at first use and can be changed at runtime:
+ * <pre>
+ * -Dvirima.log.level=INFO                       default for every component
+ * -Dvirima.log.level.JediTermSshExecutor=DEBUG  one component
+ * AsyncLog.setLevel("JSch", AsyncLog.Level.DEBUG);
+ * </pre>
+ */
+public final class AsyncLog {
+
+    public enum Level { TRACE, DEBUG, INFO, WARN, ERROR, OFF }
+
+    private static final String PROPERTY_PREFIX = "virima.log.level";
+    private static final int CAPACITY = 8192;
+    private static final int BATCH_SIZE = 256;
+    private static final DateTimeFormatter TIME_FORMAT =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+    private static final Map<String, ComponentLog> COMPONENTS = new ConcurrentHashMap<>();
+    private static final BlockingQueue<Entry> QUEUE = new ArrayBlockingQueue<>(CAPACITY);
+    private static final AtomicLong DROPPED = new AtomicLong();
+    private static volatile Level defaultLevel = parseLevel(System.getProperty(PROPERTY_PREFIX), Level.INFO);
+
+    static {
+        // JSch's INFO is packet-level chatter; only warnings unless asked for
+        forComponent("JSch").setLevel(parseLevel(System.getProperty(PROPERTY_PREFIX + ".JSch"), Level.WARN));
+
+        Thread writer = new Thread(AsyncLog::drainLoop, "async-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(AsyncLog::flush, "async-log-flush"));
+    }
+
+    private AsyncLog() {
+    }
+
+    public static ComponentLog forComponent(String component) {
+        return COMPONENTS.computeIfAbsent(component,
+                name -> new ComponentLog(name, parseLevel(System.getProperty(PROPERTY_PREFIX + "." + name), null)));
+    }
+
+    public static Level getLevel(String component) {
+        return forComponent(component).getLevel();
+    }
+
+    /**
+     * Sets a component's level at runtime; null makes it follow the default level again.
+     */
+    public static void setLevel(String component, Level level) {
+        forComponent(component).setLevel(level);
+    }
+
+    public static Level getDefaultLevel() {
+        return defaultLevel;
+    }
+
+    public static void setDefaultLevel(Level level) {
+        defaultLevel = level;
+    }
+
+    /**
+     * Entries dropped because the ring buffer was full.
+     */
+    public static long getDroppedCount() {
+        return DROPPED.get();
+    }
+
+    static void enqueue(String component, Level level, String message, Throwable error) {
+        if (!QUEUE.offer(new Entry(System.currentTimeMillis(), component, level, Thread.currentThread().getName(), message, error))) {
+            DROPPED.incrementAndGet();
+        }
+    }
+
+    /**
+     * Writes out whatever is queued. Called on shutdown; handy before exiting a CLI.
+     */
+    public static synchronized void flush() {
+        List<Entry> batch = new ArrayList<>(BATCH_SIZE);
+        while (QUEUE.drainTo(batch, BATCH_SIZE) > 0) {
+            write(batch);
+            batch.clear();
+        }
+    }
+
+    private static void drainLoop() {
+        List<Entry> batch = new ArrayList<>(BATCH_SIZE);
+        while (true) {
+            try {
+                Entry first = QUEUE.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                synchronized (AsyncLog.class) {
+                    batch.add(first);
+                    QUEUE.drainTo(batch, BATCH_SIZE - 1);
+                    write(batch);
+                    batch.clear();
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                batch.clear();
+            }
+        }
+    }
+
+    private static void write(List<Entry> batch) {
+        StringBuilder out = new StringBuilder();
+        StringBuilder err = new StringBuilder();
+        for (Entry entry : batch) {
+            StringBuilder target = entry.level.ordinal() >= Level.WARN.ordinal() ? err : out;
+            target.append(TIME_FORMAT.format(Instant.ofEpochMilli(entry.time)))
+                    .append(' ').append(entry.level)
+                    .append(" [").append(entry.component).append("] ")
+                    .append('(').append(entry.thread).append(") ")
+                    .append(entry.message).append(System.lineSeparator());
+        }
+        long dropped = DROPPED.getAndSet(0);
+        if (dropped > 0) {
+            err.append("WARN [AsyncLog] dropped ").append(dropped).append(" log entries, buffer full").append(System.lineSeparator());
+        }
+        print(System.out, out);
+        print(System.err, err);
+        for (Entry entry : batch) {
+            if (entry.error != null) {
+                entry.error.printStackTrace(System.err);
+            }
+        }
+    }
+
+    private static void print(PrintStream stream, StringBuilder text) {
+        if (!text.isEmpty()) {
+            stream.print(text);
+            stream.flush();
+        }
+    }
+
+    private static Level parseLevel(String value, Level fallback) {
+        if (value == null || value.isBlank()) {
+            return fallback;
+        }
+        try {
+            return Level.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return fallback;
+        }
+    }
+
+    private static final class Entry {
+        final long time;
+        final String component;
+        final Level level;
+        final String thread;
+        final String message;
+        final Throwable error;
+
+        Entry(long time, String component, Level level, String thread, String message, Throwable error) {
+            this.time = time;
+            this.component = component;
+            this.level = level;
+            this.thread = thread;
+            this.message = message;
+            this.error = error;
+        }
+    }
+}
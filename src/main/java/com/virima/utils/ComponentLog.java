@@ -0,0 +1,97 @@
+package com.virima.utils;
+
+import java.util.function.Supplier;
+
+/**
+ * Logger for one component, backed by {@link AsyncLog}.
+ * <p>
+ * Use the {@link Supplier} overloads for anything that concatenates or copies: the supplier
+ * only runs when the level is enabled, so a disabled debug line costs one volatile read and nothing else.
+ */
+public final class ComponentLog {
+    private final String component;
+    // null means "follow AsyncLog's default level"
+    private volatile AsyncLog.Level level;
+
+    ComponentLog(String component, AsyncLog.Level level) {
+        this.component = component;
+        this.level = level;
+    }
+
+    public String getComponent() {
+        return component;
+    }
+
+    public AsyncLog.Level getLevel() {
+        AsyncLog.Level current = level;
+        return current != null ? current : AsyncLog.getDefaultLevel();
+    }
+
+    void setLevel(AsyncLog.Level level) {
+        this.level = level;
+    }
+
+    public boolean isEnabled(AsyncLog.Level level) {
+        return level != AsyncLog.Level.OFF && level.ordinal() >= getLevel().ordinal();
+    }
+
+    public boolean isDebugEnabled() {
+        return isEnabled(AsyncLog.Level.DEBUG);
+    }
+
+    public boolean isTraceEnabled() {
+        return isEnabled(AsyncLog.Level.TRACE);
+    }
+
+    public void log(AsyncLog.Level level, Supplier<String> message) {
+        if (isEnabled(level)) {
+            AsyncLog.enqueue(component, level, message.get(), null);
+        }
+    }
+
+    public void log(AsyncLog.Level level, String message) {
+        if (isEnabled(level)) {
+            AsyncLog.enqueue(component, level, message, null);
+        }
+    }
+
+    public void trace(Supplier<String> message) {
+        log(AsyncLog.Level.TRACE, message);
+    }
+
+    public void debug(Supplier<String> message) {
+        log(AsyncLog.Level.DEBUG, message);
+    }
+
+    public void debug(String message) {
+        log(AsyncLog.Level.DEBUG, message);
+    }
+
+    public void info(Supplier<String> message) {
+        log(AsyncLog.Level.INFO, message);
+    }
+
+    public void info(String message) {
+        log(AsyncLog.Level.INFO, message);
+    }
+
+    public void warn(String message) {
+        log(AsyncLog.Level.WARN, message);
+    }
+
+    public void warn(String message, Throwable error) {
+        if (isEnabled(AsyncLog.Level.WARN)) {
+            AsyncLog.enqueue(component, AsyncLog.Level.WARN, message, error);
+        }
+    }
+
+    public void error(String message) {
+        log(AsyncLog.Level.ERROR, message);
+    }
+
+    public void error(String message, Throwable error) {
+        if (isEnabled(AsyncLog.Level.ERROR)) {
+            AsyncLog.enqueue(component, AsyncLog.Level.ERROR, message, error);
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package com.virima.jsch;
+
+import com.jcraft.jsch.JSchException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ChannelMultiplexerTest {
+
+    // Learned limits are kept per host across multiplexers, so every test uses its own host
+    private static final AtomicInteger HOSTS = new AtomicInteger();
+
+    private final String host = "user@host-" + HOSTS.incrementAndGet() + ":22";
+    private final FakeOpener opener = new FakeOpener();
+    private final ChannelMultiplexer multiplexer = new ChannelMultiplexer(opener, host);
+
+    @AfterEach
+    void close() {
+        opener.gate.countDown();
+        multiplexer.close();
+    }
+
+    // ==================== OPEN FAILURES ====================
+
+    @Test
+    void reasonCodeInTheExitStatusIsARefusal() {
+        JSchException refused = SSHExecutor.openFailure(ChannelRefusedException.RESOURCE_SHORTAGE, new JSchException("channel is not opened."));
+
+        ChannelRefusedException exception = assertInstanceOf(ChannelRefusedException.class, refused);
+        assertEquals(ChannelRefusedException.RESOURCE_SHORTAGE, exception.getReasonCode());
+        assertTrue(exception.mayBeChannelLimit());
+        assertFalse(((ChannelRefusedException) SSHExecutor.openFailure(ChannelRefusedException.UNKNOWN_CHANNEL_TYPE,
+                new JSchException("channel is not opened."))).mayBeChannelLimit());
+    }
+
+    @Test
+    void noExitStatusIsNotARefusal() {
+        JSchException timeout = new JSchException("channel is not opened.");
+
+        assertEquals(timeout, SSHExecutor.openFailure(-1, timeout));
+        assertFalse(SSHExecutor.openFailure(-1, new IOException("pipe closed")) instanceof ChannelRefusedException);
+    }
+
+    @Test
+    void failsWithoutRetryWhenNotARefusal() {
+        opener.failure = -1;
+
+        assertFalse(multiplexer.submit("ls", false).join().getResult());
+        assertEquals(1, opener.attempts.get());
+        assertEquals(ChannelMultiplexer.DEFAULT_CHANNEL_LIMIT, multiplexer.getChannelLimit());
+    }
+
+    @Test
+    void refusalWithNothingElseOpenIsNotTheLimit() {
+        opener.failure = ChannelRefusedException.ADMINISTRATIVELY_PROHIBITED;
+
+        assertFalse(multiplexer.submit("ls", false).join().getResult());
+        assertEquals(1, opener.attempts.get());
+        assertEquals(ChannelMultiplexer.DEFAULT_CHANNEL_LIMIT, multiplexer.getChannelLimit());
+    }
+
+    // ==================== LIMIT ====================
+
+    @Test
+    void shrinksToWhatTheServerAllowsAndRequeues() throws InterruptedException {
+        opener.capacity = 3;
+        opener.gate = new CountDownLatch(1);
+
+        List<CompletableFuture<CommandResult>> futures = IntStream.range(0, 6)
+                .mapToObj(i -> multiplexer.submit("cmd" + i, false))
+                .toList();
+        awaitLimit(3);
+        opener.gate.countDown();
+
+        for (int i = 0; i < futures.size(); i++) {
+            CommandResult result = futures.get(i).join();
+            assertTrue(result.getResult());
+            assertEquals("cmd" + i, result.getOutput());
+        }
+        assertTrue(opener.refusals.get() > 0);
+        // The next multiplexer to the host starts from what was learned
+        assertEquals(3, new ChannelMultiplexer(opener, host).getChannelLimit());
+    }
+
+    @Test
+    void raisesTheLimitAgainAfterOpensWithoutRefusal() throws InterruptedException {
+        opener.capacity = 3;
+        opener.gate = new CountDownLatch(1);
+        List<CompletableFuture<CommandResult>> futures = IntStream.range(0, 6)
+                .mapToObj(i -> multiplexer.submit("cmd" + i, false))
+                .toList();
+        awaitLimit(3);
+        opener.gate.countDown();
+        futures.forEach(CompletableFuture::join);
+
+        // The six that got through after the last refusal count towards the raise
+        for (int i = futures.size(); i < ChannelMultiplexer.RAISE_AFTER_OPENS - 1; i++) {
+            assertTrue(multiplexer.submit("ls", false).join().getResult());
+        }
+        assertEquals(3, multiplexer.getChannelLimit());
+
+        assertTrue(multiplexer.submit("ls", false).join().getResult());
+        assertEquals(4, multiplexer.getChannelLimit());
+        assertEquals(4, new ChannelMultiplexer(opener, host).getChannelLimit());
+    }
+
+    private void awaitLimit(int expected) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (multiplexer.getChannelLimit() != expected || opener.waiting() < expected) {
+            assertTrue(System.nanoTime() < deadline, "limit stayed at " + multiplexer.getChannelLimit());
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Refuses opens beyond {@code capacity} channels like a server at its MaxSessions, reporting
+     * the reason code the way JSch does, as the channel's exit status.
+     */
+    private static final class FakeOpener implements ChannelMultiplexer.ChannelOpener {
+        volatile int capacity = Integer.MAX_VALUE;
+        // Exit status of every open when set
+        volatile Integer failure;
+        volatile CountDownLatch gate = new CountDownLatch(0);
+        final AtomicInteger open = new AtomicInteger();
+        final AtomicInteger blocked = new AtomicInteger();
+        final AtomicInteger attempts = new AtomicInteger();
+        final AtomicInteger refusals = new AtomicInteger();
+
+        @Override
+        public CommandResult exec(String command, boolean isAdmin) throws JSchException {
+            attempts.incrementAndGet();
+            if (failure != null) {
+                throw SSHExecutor.openFailure(failure, new JSchException("channel is not opened."));
+            }
+            if (open.incrementAndGet() > capacity) {
+                open.decrementAndGet();
+                refusals.incrementAndGet();
+                throw SSHExecutor.openFailure(ChannelRefusedException.ADMINISTRATIVELY_PROHIBITED, new JSchException("channel is not opened."));
+            }
+            try {
+                blocked.incrementAndGet();
+                gate.await();
+                return new CommandResult(true, 0, command);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return new CommandResult(false, -1, "");
+            } finally {
+                blocked.decrementAndGet();
+                open.decrementAndGet();
+            }
+        }
+
+        int waiting() {
+            return blocked.get();
+        }
+
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package com.virima.jsch;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CompletionTimingModelTest {
+
+    @TempDir
+    Path dir;
+
+    private final List<CompletionTimingModel> models = new ArrayList<>();
+
+    @AfterEach
+    void closeModels() {
+        models.forEach(CompletionTimingModel::close);
+    }
+
+    // ==================== HISTOGRAM ====================
+
+    @Test
+    void percentileIsTheBoundOfItsBucket() {
+        CompletionTimingModel.GapHistogram histogram = new CompletionTimingModel.GapHistogram();
+        for (int i = 0; i < 98; i++) {
+            histogram.add(40);
+        }
+        histogram.add(900);
+        histogram.add(900);
+
+        assertEquals(50, histogram.percentile(0.5));
+        assertEquals(50, histogram.percentile(0.98));
+        assertEquals(1000, histogram.percentile(0.99));
+        assertEquals(1000, histogram.percentile(1.0));
+    }
+
+    @Test
+    void percentileOfLongGapsIsTheLastBound() {
+        CompletionTimingModel.GapHistogram histogram = new CompletionTimingModel.GapHistogram();
+        histogram.add(10 * 60_000);
+
+        assertEquals(60_000, histogram.percentile(0.99));
+    }
+
+    @Test
+    void halvesCountsWhenFull() {
+        CompletionTimingModel.GapHistogram histogram = new CompletionTimingModel.GapHistogram();
+        for (int i = 0; i < 2001; i++) {
+            histogram.add(100);
+        }
+
+        assertEquals(1000, histogram.total());
+    }
+
+    @Test
+    void storesAndLoadsCounts() {
+        CompletionTimingModel.GapHistogram histogram = new CompletionTimingModel.GapHistogram();
+        histogram.add(30);
+        histogram.add(3000);
+
+        CompletionTimingModel.GapHistogram loaded = CompletionTimingModel.GapHistogram.load(histogram.store());
+        assertEquals(2, loaded.total());
+        assertEquals(3000, loaded.percentile(1.0));
+        assertNull(CompletionTimingModel.GapHistogram.load("1,2,3"));
+        assertNull(CompletionTimingModel.GapHistogram.load(histogram.store().replace('0', 'x')));
+    }
+
+    // ==================== THRESHOLDS ====================
+
+    @Test
+    void usesDefaultsUntilThereAreEnoughSamples() {
+        CompletionTimingModel model = model();
+        learn(model, "h", "show version", 29, 100);
+
+        assertSame(CompletionTimingModel.Thresholds.DEFAULT, model.thresholds("h", "show version"));
+    }
+
+    @Test
+    void learnsQuietTimeFromTheCommandsPauses() {
+        CompletionTimingModel model = model();
+        learn(model, "h", "show tech", 40, 2500);
+
+        // p99 is the 3000 ms bucket, plus half of it as margin
+        CompletionTimingModel.Thresholds thresholds = model.thresholds("h", "show tech detail");
+        assertEquals(4500, thresholds.getRawStable());
+        assertEquals(9000, thresholds.getRawStableBonus());
+    }
+
+    @Test
+    void neverGoesBelowTheMinimumQuietTime() {
+        CompletionTimingModel model = model();
+        learn(model, "h", "ls -l", 40, 30);
+
+        assertEquals(300, model.thresholds("h", "ls -l /tmp").getRawStable());
+    }
+
+    @Test
+    void commandWithoutSamplesGetsNoLessThanTheDefaults() {
+        CompletionTimingModel model = model();
+        learn(model, "h", "ls -l", 40, 30);
+        // A fast host doesn't make an unknown command fast
+        assertEquals(CompletionTimingModel.Thresholds.DEFAULT.getRawStable(), model.thresholds("h", "du -sh /").getRawStable());
+
+        learn(model, "slow", "show tech", 40, 2500);
+        assertEquals(4500, model.thresholds("slow", "show run").getRawStable());
+    }
+
+    @Test
+    void ignoresShortGapsAndOutputAfterTheLateWindow() {
+        CompletionTimingModel model = model();
+        CompletionTimingModel.Gaps gaps = model.newGaps("h", "cat log");
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 40; i++) {
+            gaps.add(5, now);
+        }
+        gaps.closeAfter(0);
+        for (int i = 0; i < 40; i++) {
+            gaps.add(1000, now + 60_000);
+        }
+        gaps.commit();
+
+        assertSame(CompletionTimingModel.Thresholds.DEFAULT, model.thresholds("h", "cat log"));
+    }
+
+    @Test
+    void forgetsAHost() {
+        CompletionTimingModel model = model();
+        learn(model, "h", "show tech", 40, 2500);
+        model.forget("h");
+
+        assertSame(CompletionTimingModel.Thresholds.DEFAULT, model.thresholds("h", "show tech"));
+    }
+
+    // ==================== PERSISTENCE ====================
+
+    @Test
+    void persistsWithoutCommandText() throws IOException {
+        File file = dir.resolve("timing.properties").toFile();
+        CompletionTimingModel model = open(file);
+        learn(model, "h", "mysql -psecret", 40, 2500);
+        model.save();
+
+        String stored = Files.readString(file.toPath());
+        assertFalse(stored.contains("mysql"));
+        assertFalse(stored.contains("secret"));
+        assertEquals(4500, open(file).thresholds("h", "mysql -psecret").getRawStable());
+    }
+
+    @Test
+    void dropsEntriesStoredWithCommandText() throws IOException {
+        File file = dir.resolve("timing.properties").toFile();
+        String counts = "0,0,0,0,0,0,0,0,0,0,0,0,40,0,0,0,0,0,0,0,0,0";
+        Files.writeString(file.toPath(), "h=" + counts + "\nh|show\\ tech=" + counts + "\n");
+
+        CompletionTimingModel model = open(file);
+        model.save();
+
+        String stored = Files.readString(file.toPath());
+        assertFalse(stored.contains("show"));
+        assertTrue(stored.contains("h=" + counts));
+    }
+
+    @Test
+    void savesOnClose() {
+        File file = dir.resolve("timing.properties").toFile();
+        CompletionTimingModel model = new CompletionTimingModel(file);
+        learn(model, "h", "show tech", 40, 2500);
+        model.close();
+
+        assertEquals(4500, open(file).thresholds("h", "show tech").getRawStable());
+    }
+
+    private CompletionTimingModel model() {
+        return open(dir.resolve("model.properties").toFile());
+    }
+
+    private CompletionTimingModel open(File file) {
+        CompletionTimingModel model = new CompletionTimingModel(file);
+        models.add(model);
+        return model;
+    }
+
+    private static void learn(CompletionTimingModel model, String host, String command, int samples, long gapMillis) {
+        CompletionTimingModel.Gaps gaps = model.newGaps(host, command);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < samples; i++) {
+            gaps.add(gapMillis, now);
+        }
+        gaps.commit();
+    }
+}
@@ -0,0 +1,38 @@
+package com.virima.jsch;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class DeviceProfileRegistryTest {
+
+    private final DeviceProfileRegistry registry = new DeviceProfileRegistry();
+
+    @Test
+    void cachesARecognizedHost() {
+        String text = "Cisco IOS Software, C2960 Software\r\nswitch1#";
+
+        assertSame(DeviceProfile.CISCO_IOS, registry.detect("h", 22, text, "switch1#"));
+        assertSame(DeviceProfile.CISCO_IOS, registry.getProfile("h", 22));
+        assertSame(DeviceProfile.CISCO_IOS, registry.forHost("h", 22));
+    }
+
+    @Test
+    void doesNotCacheAHostWithoutBanner() {
+        assertSame(DeviceProfile.GENERIC, registry.detect("h", 22, "switch1#", "switch1#"));
+        assertNull(registry.getProfile("h", 22));
+
+        // The next login shows the banner and is recognized
+        String text = "Cisco IOS Software, C2960 Software\r\nswitch1#";
+        assertSame(DeviceProfile.CISCO_IOS, registry.detect("h", 22, text, "switch1#"));
+    }
+
+    @Test
+    void needsThePromptShapeToTrustTheBanner() {
+        String text = "Welcome to Ubuntu 22.04\r\nrouter>";
+
+        assertSame(DeviceProfile.GENERIC, registry.detect("h", 22, text, "router>"));
+        assertNull(registry.getProfile("h", 22));
+    }
+}
@@ -0,0 +1,78 @@
+package com.virima.jsch;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HostCircuitBreakerTest {
+
+    private static final long BACKOFF = 30;
+
+    private final HostCircuitBreaker breaker = new HostCircuitBreaker(2, BACKOFF, 10_000);
+
+    @Test
+    void unknownHostIsClosed() {
+        assertEquals(0, breaker.tryAcquire("h", 22));
+        assertEquals(HostCircuitBreaker.State.CLOSED, breaker.getState("h", 22));
+    }
+
+    @Test
+    void opensAfterThresholdFailures() {
+        breaker.onFailure("h", 22);
+        assertEquals(HostCircuitBreaker.State.CLOSED, breaker.getState("h", 22));
+        assertEquals(0, breaker.tryAcquire("h", 22));
+
+        breaker.onFailure("h", 22);
+        assertEquals(HostCircuitBreaker.State.OPEN, breaker.getState("h", 22));
+        assertTrue(breaker.tryAcquire("h", 22) > 0);
+        // Other ports of the same host have their own circuit
+        assertEquals(0, breaker.tryAcquire("h", 2222));
+    }
+
+    @Test
+    void letsOneProbeThroughAfterBackoff() throws InterruptedException {
+        open();
+        Thread.sleep(BACKOFF * 2);
+
+        assertEquals(0, breaker.tryAcquire("h", 22));
+        assertEquals(HostCircuitBreaker.State.HALF_OPEN, breaker.getState("h", 22));
+        assertTrue(breaker.tryAcquire("h", 22) > 0, "only one probe at a time");
+    }
+
+    @Test
+    void successfulProbeCloses() throws InterruptedException {
+        open();
+        Thread.sleep(BACKOFF * 2);
+        breaker.tryAcquire("h", 22);
+
+        breaker.onSuccess("h", 22);
+        assertEquals(HostCircuitBreaker.State.CLOSED, breaker.getState("h", 22));
+        assertEquals(0, breaker.tryAcquire("h", 22));
+    }
+
+    @Test
+    void failedProbeReopensWithDoubleBackoff() throws InterruptedException {
+        open();
+        Thread.sleep(BACKOFF * 2);
+        breaker.tryAcquire("h", 22);
+
+        breaker.onFailure("h", 22);
+        assertEquals(HostCircuitBreaker.State.OPEN, breaker.getState("h", 22));
+        // The first backoff was at most BACKOFF plus 10% jitter
+        assertTrue(breaker.tryAcquire("h", 22) > BACKOFF * 1.1);
+    }
+
+    @Test
+    void resetForgetsTheHost() {
+        open();
+        breaker.reset("h", 22);
+        assertEquals(HostCircuitBreaker.State.CLOSED, breaker.getState("h", 22));
+        assertEquals(0, breaker.tryAcquire("h", 22));
+    }
+
+    private void open() {
+        breaker.onFailure("h", 22);
+        breaker.onFailure("h", 22);
+    }
+}
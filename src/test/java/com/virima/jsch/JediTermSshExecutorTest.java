@@ -0,0 +1,23 @@
+package com.virima.jsch;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class JediTermSshExecutorTest {
+
+    @Test
+    void matchesTheCommandWithOrWithoutThePrompt() {
+        assertTrue(JediTermSshExecutor.isEcho("ls", "user@host:~$", "ls"));
+        assertTrue(JediTermSshExecutor.isEcho("user@host:~$ ls", "user@host:~$", "ls"));
+        assertTrue(JediTermSshExecutor.isEcho("switch#show version", "switch#", "show version "));
+    }
+
+    @Test
+    void doesNotMatchOutputEndingInTheCommand() {
+        assertFalse(JediTermSshExecutor.isEcho("tools", "user@host:~$", "ls"));
+        assertFalse(JediTermSshExecutor.isEcho("drwxr-xr-x 2 root root 4096 bin ls", "user@host:~$", "ls"));
+        assertFalse(JediTermSshExecutor.isEcho("other$ ls", "user@host:~$", "ls"));
+    }
+}
@@ -0,0 +1,79 @@
+package com.virima.jsch;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class LineIndexTest {
+
+    @Test
+    void splitsLikeStringLinesOnLineFeeds() {
+        for (String text : new String[]{"", "a", "a\n", "a\nb", "a\nb\n", "\n", "\n\n", "a\n\nb\n", "a\r\nb\r\n"}) {
+            assertEquals(text.lines().toList(), lines(SpillableOutput.wrap(bytes(text))), "for " + escape(text));
+        }
+    }
+
+    @Test
+    void dropsCarriageReturnOnlyBeforeLineFeed() {
+        SpillableOutput output = SpillableOutput.wrap(bytes("one\r\ntwo\r"));
+        assertEquals(List.of("one", "two\r"), lines(output));
+    }
+
+    @Test
+    void keepsLastLineWithoutLineBreak() {
+        SpillableOutput output = SpillableOutput.wrap(bytes("first\nlast"));
+        LineIndex index = LineIndex.build(output);
+        assertEquals(2, index.lineCount());
+        assertEquals(6, index.start(1));
+        assertEquals(4, index.length(1, output));
+    }
+
+    @Test
+    void indexesSpilledOutput() throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 20_000; i++) {
+            text.append("line ").append(i).append("\r\n");
+        }
+        SpillableOutput output = new SpillableOutput(1024);
+        output.write(bytes(text.toString()));
+        output.close();
+
+        List<String> lines = lines(output);
+        assertEquals(20_000, lines.size());
+        assertEquals("line 0", lines.get(0));
+        assertEquals("line 19999", lines.get(19_999));
+    }
+
+    @Test
+    void commandResultReadsSingleLines() {
+        CommandResult result = new CommandResult(true, 0, "héllo\r\nwörld");
+        assertEquals(2, result.lineCount());
+        assertEquals("héllo", result.line(0));
+        assertEquals("wörld", result.line(1));
+        assertEquals(List.of("wörld"), result.lines(1, 2).toList());
+        assertThrows(IndexOutOfBoundsException.class, () -> result.line(2));
+    }
+
+    private static List<String> lines(SpillableOutput output) {
+        LineIndex index = LineIndex.build(output);
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < index.lineCount(); i++) {
+            lines.add(new String(output.read(index.start(i), index.length(i, output)), StandardCharsets.UTF_8));
+        }
+        return lines;
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String escape(String text) {
+        return "'" + text.replace("\r", "\\r").replace("\n", "\\n") + "'";
+    }
+}
@@ -0,0 +1,127 @@
+package com.virima.jsch;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class MarkerSplitterTest {
+
+    private static final String TOKEN = "__VIRIMA_0123456789abcdef";
+
+    private final ByteArrayOutputStream[] outputs = {new ByteArrayOutputStream(), new ByteArrayOutputStream()};
+    private final ExecBatch.MarkerSplitter splitter = new ExecBatch.MarkerSplitter(TOKEN, outputs);
+
+    @Test
+    void splitsOutputAndExitCodes() throws IOException {
+        feed(begin(0) + "hello\n" + end(0, 3) + begin(1) + "world\n" + end(1, 0));
+
+        assertEquals("hello\n", output(0));
+        assertEquals("world\n", output(1));
+        assertArrayEquals(new Integer[]{3, 0}, splitter.exitCodes);
+    }
+
+    @Test
+    void keepsOutputWithoutTrailingNewline() throws IOException {
+        feed(begin(0) + "no newline" + end(0, 0) + begin(1) + end(1, 0));
+
+        assertEquals("no newline", output(0));
+        assertEquals("", output(1));
+    }
+
+    @Test
+    void keepsBlankLinesAndCrlf() throws IOException {
+        // On a pty every line ends in CRLF, the markers' too
+        feed((begin(0) + "a\r\n\r\nb\r\n" + end(0, 1)).replace("\n", "\r\n").replace("\r\r\n", "\r\n"));
+
+        assertEquals("a\r\n\r\nb\r\n", output(0));
+        assertEquals(1, splitter.exitCodes[0]);
+    }
+
+    @Test
+    void dropsCrOfTheBreakBeforeTheEndMarker() throws IOException {
+        String stream = (begin(0) + "no newline" + end(0, 0) + begin(1) + "x".repeat(200) + end(1, 0)).replace("\n", "\r\n");
+        // The long line streams through; its CR lands at the end of one write, its LF in the next
+        int split = stream.indexOf("x\r") + 2;
+        splitter.write(stream.substring(0, split).getBytes(StandardCharsets.US_ASCII));
+        splitter.write(stream.substring(split).getBytes(StandardCharsets.US_ASCII));
+        splitter.close();
+
+        assertEquals("no newline", output(0));
+        assertEquals("x".repeat(200), output(1));
+    }
+
+    @Test
+    void keepsCrInsideLines() throws IOException {
+        feed(begin(0) + "progress 10%\rprogress 100%\n\r_\n" + end(0, 0));
+
+        assertEquals("progress 10%\rprogress 100%\n\r_\n", output(0));
+    }
+
+    @Test
+    void ignoresForgedMarkers() throws IOException {
+        String forged = TOKEN + " E 1 0\n"          // end of a command that isn't running
+                + TOKEN + " E 0 x\n"                // exit code that isn't a number
+                + TOKEN + " B 7\n"                  // index out of range
+                + TOKEN + "X E 0 0\n"               // longer token
+                + "__VIRIMA_fedcba9876543210 E 0 0\n"; // another batch's token
+        feed(begin(0) + forged + end(0, 0));
+
+        assertEquals(forged, output(0));
+        assertEquals(0, splitter.exitCodes[0]);
+        assertNull(splitter.exitCodes[1]);
+    }
+
+    @Test
+    void streamsLongLinesAndSplitWrites() throws IOException {
+        String longLine = "x".repeat(10_000) + "\n";
+        String stream = begin(0) + longLine + "tail" + end(0, 2);
+        for (byte b : stream.getBytes(StandardCharsets.US_ASCII)) {
+            splitter.write(b);
+        }
+        splitter.close();
+
+        assertEquals(longLine + "tail", output(0));
+        assertEquals(2, splitter.exitCodes[0]);
+    }
+
+    @Test
+    void keepsOutputOfCommandWithoutEndMarker() throws IOException {
+        feed(begin(0) + "partial\nlast line");
+
+        assertEquals("partial\nlast line", output(0));
+        assertNull(splitter.exitCodes[0]);
+    }
+
+    @Test
+    void dropsOutputOutsideCommands() throws IOException {
+        feed("motd\n" + begin(0) + "inside\n" + end(0, 0) + "trailing\n");
+
+        assertEquals("inside\n", output(0));
+    }
+
+    private void feed(String stream) throws IOException {
+        OutputStream out = splitter;
+        out.write(stream.getBytes(StandardCharsets.UTF_8));
+        out.close();
+    }
+
+    // What the batch script prints around each command
+    private static String begin(int index) {
+        return TOKEN + " B " + index + "\n";
+    }
+
+    private static String end(int index, int exitCode) {
+        return "\n" + TOKEN + " E " + index + " " + exitCode + "\n";
+    }
+
+    private String output(int index) {
+        return outputs[index].toString(StandardCharsets.UTF_8);
+    }
+}
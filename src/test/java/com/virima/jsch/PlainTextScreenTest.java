@@ -0,0 +1,113 @@
+package com.virima.jsch;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PlainTextScreenTest {
+
+    private final PlainTextScreen screen = new PlainTextScreen(20, 4, 100);
+
+    @Test
+    void putsLinesOnScreenAndScrollsIntoHistory() {
+        assertTrue(feed("one\r\ntwo\r\nthree\r\nfour\r\nfive"));
+
+        // Four rows, the line being written included
+        assertEquals("two\nthree\nfour\nfive", screen.getScreenLines());
+        assertEquals(List.of("one"), history());
+    }
+
+    @Test
+    void overstrikesAfterCarriageReturnAndBackspace() {
+        feed("progress 10%\rprogress 99%\b\b\b100%");
+
+        assertEquals("progress 100%", screen.getScreenLines());
+    }
+
+    @Test
+    void dropsColorsAndTitles() {
+        feed("\u001b]0;user@host\u0007\u001b[1;32mgreen\u001b[0m \u001b(Bplain");
+
+        assertEquals("green plain", screen.getScreenLines());
+    }
+
+    @Test
+    void erasesInLine() {
+        feed("abcdef\r\u001b[3C\u001b[K");
+        assertEquals("abc", screen.getScreenLines());
+
+        feed("\r\u001b[2K");
+        assertEquals("", screen.getScreenLines());
+    }
+
+    @Test
+    void stopsCursorForwardAtTheRightMargin() {
+        feed("ab\u001b[9999Cz");
+
+        assertEquals("ab" + " ".repeat(17) + "z", screen.getScreenLines());
+    }
+
+    @Test
+    void stopsCursorToColumnAndTabsAtTheRightMargin() {
+        feed("\u001b[500Gx\ny\t\t\t\t\tz");
+
+        assertEquals(" ".repeat(19) + "x\ny" + " ".repeat(18) + "z", screen.getScreenLines());
+    }
+
+    @Test
+    void wrapsTextAtTheRightMargin() {
+        feed("0123456789012345678901234");
+
+        assertEquals("01234567890123456789\n01234", screen.getScreenLines());
+    }
+
+    @Test
+    void handsOverOnCursorAddressing() {
+        feed("before ");
+        assertFalse(feed("\u001b[2;5H"));
+
+        assertEquals("before ", screen.getScreenLines());
+        assertArrayEquals("\u001b[2;5H".toCharArray(), screen.pendingSequence());
+    }
+
+    @Test
+    void handsOverOnAlternateScreenOnly() {
+        assertTrue(feed("\u001b[?25l\u001b[?2004h"));
+        assertFalse(feed("\u001b[?1049h"));
+    }
+
+    @Test
+    void dropsOverlongSequenceInsteadOfHandingOver() {
+        assertTrue(feed("\u001b[" + "1;".repeat(40) + "H"));
+        assertTrue(feed("after"));
+
+        assertEquals("after", screen.getScreenLines());
+    }
+
+    @Test
+    void replaysToTheSameScreenAndCursor() {
+        feed("one\r\ntwo\r\nabcdef\r\u001b[2C");
+
+        assertEquals("one\r\ntwo\r\nabcdef\r\u001b[2C", screen.replayText());
+    }
+
+    private boolean feed(String text) {
+        boolean all = true;
+        for (char c : text.toCharArray()) {
+            all &= screen.accept(c);
+        }
+        return all;
+    }
+
+    private List<String> history() {
+        List<String> lines = new ArrayList<>();
+        screen.getHistory().forEach(lines::add);
+        return lines;
+    }
+}
@@ -0,0 +1,70 @@
+package com.virima.jsch;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class RawHistoryTest {
+
+    @Test
+    void returnsWhatCameAfterAPosition() {
+        RawHistory history = new RawHistory(16);
+        append(history, "hello ");
+        long mark = history.position();
+        append(history, "world");
+
+        assertEquals(11, history.position());
+        assertEquals("world", history.since(mark));
+        assertEquals("hello world", history.since(0));
+        assertEquals("", history.since(history.position()));
+    }
+
+    @Test
+    void wrapsAroundAndKeepsTheNewestChars() {
+        RawHistory history = new RawHistory(8);
+        append(history, "abcdef");
+        append(history, "ghij");
+
+        assertEquals(10, history.position());
+        assertEquals(2, history.oldest());
+        assertEquals("cdefghij", history.since(0));
+        assertEquals("hij", history.since(7));
+    }
+
+    @Test
+    void keepsOnlyTheTailOfAnOversizedAppend() {
+        RawHistory history = new RawHistory(4);
+        append(history, "ab");
+        append(history, "0123456789");
+
+        assertEquals(12, history.position());
+        assertEquals("6789", history.since(0));
+    }
+
+    @Test
+    void appendsPartOfAnArray() {
+        RawHistory history = new RawHistory(8);
+        history.append("xxabcxx".toCharArray(), 2, 3);
+
+        assertEquals("abc", history.since(0));
+    }
+
+    @Test
+    void matchesAStringAfterManySmallAppends() {
+        RawHistory history = new RawHistory(100);
+        StringBuilder all = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            String chunk = Integer.toString(i, 36);
+            append(history, chunk);
+            all.append(chunk);
+        }
+
+        assertEquals(all.length(), history.position());
+        assertEquals(all.substring(all.length() - 100), history.since(0));
+        assertEquals(all.substring(all.length() - 10), history.since(all.length() - 10));
+    }
+
+    private static void append(RawHistory history, String text) {
+        history.append(text.toCharArray(), 0, text.length());
+    }
+}
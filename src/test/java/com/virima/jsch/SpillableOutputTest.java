@@ -0,0 +1,42 @@
+package com.virima.jsch;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SpillableOutputTest {
+
+    @Test
+    void keepsSmallOutputOnTheHeap() throws IOException {
+        SpillableOutput output = new SpillableOutput(1024);
+        output.write("small".getBytes(StandardCharsets.UTF_8));
+        output.close();
+
+        assertFalse(output.isSpilled());
+        assertEquals("small", output.decode(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void decodesSpilledCharsOnce() throws IOException {
+        String text = "Grüße\n".repeat(500);
+        SpillableOutput output = new SpillableOutput(1024);
+        output.write(text.getBytes(StandardCharsets.UTF_8));
+        output.close();
+
+        assertTrue(output.isSpilled());
+        CharSequence chars = output.chars(StandardCharsets.UTF_8);
+        assertEquals(text, chars.toString());
+        assertSame(chars, output.chars(StandardCharsets.UTF_8));
+
+        CharSequence latin1 = output.chars(StandardCharsets.ISO_8859_1);
+        assertNotSame(chars, latin1);
+        assertEquals(text.getBytes(StandardCharsets.UTF_8).length, latin1.length());
+    }
+}